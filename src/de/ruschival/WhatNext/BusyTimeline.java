@@ -0,0 +1,238 @@
+/******************************************************************************
+ * \filename BusyTimeline.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ * \brief Merged occurrences of PeriodicBlocks over a planning horizon
+ *
+ ******************************************************************************/
+
+package de.ruschival.WhatNext;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * @author Thomas Ruschival
+ *
+ *         Sorted, disjoint busy intervals of a set of PeriodicBlocks between a start time and a
+ *         horizon, with the free time accumulated before each interval. Free time between two
+ *         instants and the instant at which a given amount of free time is used up are found by
+ *         binary search. Time after the horizon is considered free.
+ */
+public class BusyTimeline {
+	/**
+	 * Begin of the timeline in ms since epoch
+	 */
+	private final long from;
+
+	/**
+	 * Start of busy intervals, ascending
+	 */
+	private final long[] starts;
+
+	/**
+	 * End of busy intervals, ends[i] < starts[i+1]
+	 */
+	private final long[] ends;
+
+	/**
+	 * Free time between from and starts[i]
+	 */
+	private final long[] freeBefore;
+
+	/**
+	 * Number of busy intervals
+	 */
+	private final int size;
+
+	/**
+	 * Build the timeline from all occurrences of the blocks between from and until
+	 *
+	 * @param blocks
+	 *            unavailable periods
+	 * @param from
+	 *            begin of the timeline, usually now
+	 * @param until
+	 *            horizon, e.g. the latest deadline
+	 */
+	public BusyTimeline(PeriodicBlock[] blocks, long from, long until) {
+		this.from = from;
+		int count = 0;
+		for (PeriodicBlock block : blocks) {
+			count += countOccurrences(block, from, until);
+		}
+		/* start and end of each occurrence packed to sort them together */
+		long[][] occurrences = new long[count][];
+		int n = 0;
+		for (PeriodicBlock block : blocks) {
+			int first = firstOccurrence(block, from);
+			int occ = countOccurrences(block, from, until);
+			for (int k = first; k < first + occ; k++) {
+				long start = block.getStart() + (long) k * block.getPeriod();
+				occurrences[n++] = new long[] { Math.max(start, from),
+						Math.min(start + block.getDuration(), until) };
+			}
+		}
+		Arrays.sort(occurrences, 0, n, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] lhs, long[] rhs) {
+				return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+			}
+		});
+
+		/* merge overlapping and adjacent intervals */
+		starts = new long[n];
+		ends = new long[n];
+		freeBefore = new long[n];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			long[] occ = occurrences[i];
+			if (occ[1] <= occ[0]) {
+				continue;
+			}
+			if (m > 0 && occ[0] <= ends[m - 1]) {
+				ends[m - 1] = Math.max(ends[m - 1], occ[1]);
+			} else {
+				starts[m] = occ[0];
+				ends[m] = occ[1];
+				freeBefore[m] = m == 0 ? occ[0] - from : freeBefore[m - 1] + occ[0] - ends[m - 1];
+				m++;
+			}
+		}
+		size = m;
+	}
+
+	/**
+	 * Free time between from and t
+	 *
+	 * @param t
+	 *            time in ms since epoch
+	 * @return free time in ms, 0 if t is before from
+	 */
+	public long getFreeTimeUntil(long t) {
+		if (t <= from) {
+			return 0;
+		}
+		/* number of intervals starting at or before t */
+		int i = upperBound(starts, t);
+		if (i == 0) {
+			return t - from;
+		}
+		i--;
+		return freeBefore[i] + Math.max(0, t - ends[i]);
+	}
+
+	/**
+	 * Free time between t1 and t2
+	 *
+	 * @param t1
+	 * @param t2
+	 * @return free time in ms
+	 */
+	public long getFreeTime(long t1, long t2) {
+		return getFreeTimeUntil(t2) - getFreeTimeUntil(t1);
+	}
+
+	/**
+	 * Instant at which work started at t is done if it is only carried out in free time
+	 *
+	 * @param t
+	 *            time work starts (not before from)
+	 * @param work
+	 *            free time needed in ms
+	 * @return time in ms since epoch
+	 */
+	public long getCompletion(long t, long work) {
+		if (work <= 0) {
+			return t;
+		}
+		long target = getFreeTimeUntil(t) + work;
+		/* first interval with at least target free time before it */
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (freeBefore[mid] < target) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		/* completion lies in the gap before interval lo */
+		if (lo == 0) {
+			return from + target;
+		}
+		return ends[lo - 1] + (target - freeBefore[lo - 1]);
+	}
+
+	/**
+	 * @return number of merged busy intervals
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i
+	 *            interval index, 0 .. size()-1
+	 * @return start of busy interval i
+	 */
+	public long getBusyStart(int i) {
+		return starts[i];
+	}
+
+	/**
+	 * @param i
+	 *            interval index, 0 .. size()-1
+	 * @return end of busy interval i
+	 */
+	public long getBusyEnd(int i) {
+		return ends[i];
+	}
+
+	/**
+	 * Index of the first occurrence of block that ends after t
+	 */
+	private static int firstOccurrence(PeriodicBlock block, long t) {
+		if (block.getPeriod() <= 0 || block.getStart() + block.getDuration() > t) {
+			return 0;
+		}
+		/* occurrences ending at or before t */
+		return (int) ((t - block.getStart() - block.getDuration()) / block.getPeriod()) + 1;
+	}
+
+	/**
+	 * Number of occurrences of block that overlap [from, until)
+	 */
+	private static int countOccurrences(PeriodicBlock block, long from, long until) {
+		if (block.getDuration() <= 0 || block.getStart() >= until) {
+			return 0;
+		}
+		if (block.getPeriod() <= 0) {
+			return block.getStart() + block.getDuration() > from ? 1 : 0;
+		}
+		int first = firstOccurrence(block, from);
+		/* occurrences starting before until */
+		int last = (int) ((until - 1 - block.getStart()) / block.getPeriod());
+		return Math.max(0, last - first + 1);
+	}
+
+	/**
+	 * Number of elements <= key in sorted values[0..size)
+	 */
+	private int upperBound(long[] values, long key) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] <= key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -9,7 +9,6 @@ package de.ruschival.WhatNext;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -29,6 +28,7 @@ public class LeastLaxityScheduler implements Comparator<Task> {
 	 * Milliseconds in a day
 	 */
 	public static final int MS_IN_DAY = 1000 * 60 * 60 * 24;
+
 	
 	
 	/**
@@ -46,8 +46,8 @@ public class LeastLaxityScheduler implements Comparator<Task> {
 	
 	
 	/**
-	 * if t1 is more urgent (within Margin or higher priority), 1 if t2 more
-	 * urgent or has higher priority
+	 * -1 if t1 is more urgent (lower laxity or higher priority within Margin), 1 if t2 more
+	 * urgent or has higher priority, 0 if both are equally urgent
 	 * 
 	 * @param t1
 	 *            Task 1 to compare with
@@ -57,10 +57,245 @@ public class LeastLaxityScheduler implements Comparator<Task> {
 	 */
 	@Override
 	public int compare(Task t1, Task t2) {
-		if (t1.getLaxity(t0) < t2.getLaxity(t0)) {
-			return -1;
+		return compareKeys(t1.getLaxity(t0), t1.getPriorityOrdinal(), t2.getLaxity(t0),
+				t2.getPriorityOrdinal());
+	}
+
+	/**
+	 * Sort the taskset by the same order as compare() but calculate the laxity of each task
+	 * only once. The sort is stable.
+	 * 
+	 * @param taskset
+	 *            list of tasks, sorted in place
+	 */
+	public void sort(List<Task> taskset) {
+		int n = taskset.size();
+		if (n < 2) {
+			return;
+		}
+		Task[] tasks = taskset.toArray(new Task[n]);
+		int[] order = order(tasks);
+		for (int i = 0; i < n; i++) {
+			taskset.set(i, tasks[order[i]]);
+		}
+	}
+
+	/**
+	 * Positions of tasks in the order of compare(), laxity is calculated once per task
+	 * 
+	 * @param tasks
+	 *            not modified
+	 * @return indexes into tasks, most urgent first
+	 */
+	private int[] order(Task[] tasks) {
+		int n = tasks.length;
+		long[] laxity = new long[n];
+		int[] priority = new int[n];
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			laxity[i] = tasks[i].getLaxity(t0);
+			priority[i] = tasks[i].getPriorityOrdinal();
+			order[i] = i;
+		}
+		mergeSort(order, new int[n], 0, n, laxity, priority);
+		return order;
+	}
+
+	/**
+	 * Order task ids by their laxity keys (Task.getLaxityKey()) and priorities as read from the
+	 * database, without building the tasks. Input already ordered by laxity key, e.g. from an
+	 * index scan, is only regrouped by priority within each LAXITY_MARGIN slot, which takes
+	 * almost linear time.
+	 * 
+	 * @param ids
+	 *            task ids
+	 * @param laxityKeys
+	 *            laxity key of ids[i]
+	 * @param priority
+	 *            priority ordinal of ids[i]
+	 * @param n
+	 *            number of valid entries
+	 * @return ids in scheduling order
+	 */
+	public ArrayList<Long> sortIDs(long[] ids, long[] laxityKeys, int[] priority, int n) {
+		long[] laxity = new long[n];
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			long key = laxityKeys[i];
+			laxity[i] = key >= Task.LAXITY_NO_DUE ? key : key - t0;
+			order[i] = i;
+		}
+		mergeSort(order, new int[n], 0, n, laxity, priority);
+		ArrayList<Long> sorted = new ArrayList<Long>(n);
+		for (int i = 0; i < n; i++) {
+			sorted.add(ids[order[i]]);
+		}
+		return sorted;
+	}
+
+	/**
+	 * Create a collector for the k most urgent tasks at the scheduling time of this scheduler
+	 * 
+	 * @param k
+	 *            maximum number of tasks kept
+	 * @return empty collector
+	 */
+	public Head head(int k) {
+		return new Head(k);
+	}
+
+	/**
+	 * Collects the k most urgent of the offered tasks in a bounded heap with the least urgent
+	 * kept task on top. Offering n tasks costs O(n log k) and memory for k tasks only.
+	 */
+	public class Head {
+		private final Task[] tasks;
+		private final long[] laxity;
+		private final int[] priority;
+		private int size = 0;
+
+		private Head(int k) {
+			k = Math.max(k, 0);
+			tasks = new Task[k];
+			laxity = new long[k];
+			priority = new int[k];
+		}
+
+		/**
+		 * Keep the task if it is among the k most urgent so far
+		 * 
+		 * @param task
+		 */
+		public void offer(Task task) {
+			long lax = task.getLaxity(t0);
+			int prio = task.getPriorityOrdinal();
+			if (size < tasks.length) {
+				int pos = size++;
+				/* sift up, parent must be less urgent */
+				while (pos > 0) {
+					int parent = (pos - 1) / 2;
+					if (compareKeys(laxity[parent], priority[parent], lax, prio) >= 0) {
+						break;
+					}
+					set(pos, tasks[parent], laxity[parent], priority[parent]);
+					pos = parent;
+				}
+				set(pos, task, lax, prio);
+			} else if (size > 0 && compareKeys(lax, prio, laxity[0], priority[0]) < 0) {
+				/* replace least urgent task on top and sift down */
+				int pos = 0;
+				int half = size / 2;
+				while (pos < half) {
+					int child = 2 * pos + 1;
+					if (child + 1 < size
+							&& compareKeys(laxity[child + 1], priority[child + 1], laxity[child],
+									priority[child]) > 0) {
+						child++;
+					}
+					if (compareKeys(lax, prio, laxity[child], priority[child]) >= 0) {
+						break;
+					}
+					set(pos, tasks[child], laxity[child], priority[child]);
+					pos = child;
+				}
+				set(pos, task, lax, prio);
+			}
+		}
+
+		/**
+		 * @return kept tasks, most urgent first
+		 */
+		public ArrayList<Task> toList() {
+			ArrayList<Task> list = new ArrayList<Task>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(tasks[i]);
+			}
+			sort(list);
+			return list;
+		}
+
+		private void set(int pos, Task task, long lax, int prio) {
+			tasks[pos] = task;
+			laxity[pos] = lax;
+			priority[pos] = prio;
+		}
+	}
+
+	/**
+	 * Order of two tasks given by laxity and priority. Laxities are grouped in slots of
+	 * LAXITY_MARGIN, inside a slot the higher priority (lower ordinal) comes first, then the
+	 * lower laxity. Grouping in fixed slots keeps the order transitive.
+	 * 
+	 * @return -1,0,1
+	 */
+	private static int compareKeys(long lax1, int prio1, long lax2, int prio2) {
+		long slot1 = slot(lax1);
+		long slot2 = slot(lax2);
+		if (slot1 != slot2) {
+			return slot1 < slot2 ? -1 : 1;
+		}
+		if (prio1 != prio2) {
+			return prio1 < prio2 ? -1 : 1;
+		}
+		if (lax1 != lax2) {
+			return lax1 < lax2 ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Slot of LAXITY_MARGIN width containing the laxity, rounded towards -infinity
+	 */
+	private static long slot(long laxity) {
+		long slot = laxity / LAXITY_MARGIN;
+		if (laxity < 0 && slot * LAXITY_MARGIN != laxity) {
+			slot--;
+		}
+		return slot;
+	}
+
+	/**
+	 * Stable merge sort of indices in order[from, to) by precalculated keys
+	 * 
+	 * @param order
+	 *            indices into laxity and priority
+	 * @param tmp
+	 *            scratch array of same length
+	 */
+	private static void mergeSort(int[] order, int[] tmp, int from, int to, long[] laxity,
+			int[] priority) {
+		if (to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(order, tmp, from, mid, laxity, priority);
+		mergeSort(order, tmp, mid, to, laxity, priority);
+		int a = order[mid - 1];
+		int b = order[mid];
+		if (compareKeys(laxity[a], priority[a], laxity[b], priority[b]) <= 0) {
+			// already in order
+			return;
+		}
+		System.arraycopy(order, from, tmp, from, to - from);
+		int i = from;
+		int j = mid;
+		for (int k = from; k < to; k++) {
+			if (j >= to) {
+				order[k] = tmp[i++];
+			} else if (i >= mid) {
+				order[k] = tmp[j++];
+			} else {
+				a = tmp[i];
+				b = tmp[j];
+				if (compareKeys(laxity[b], priority[b], laxity[a], priority[a]) < 0) {
+					order[k] = b;
+					j++;
+				} else {
+					order[k] = a;
+					i++;
+				}
+			}
 		}
-		return 1;
 	}
 
 	/**
@@ -72,7 +307,7 @@ public class LeastLaxityScheduler implements Comparator<Task> {
 	 */
 	public boolean isSchedulable(List<Task> taskset) {
 		// Sort the taskset by laxity
-		Collections.sort(taskset, this);
+		sort(taskset);
 		long now = Calendar.getInstance().getTimeInMillis();
 		long scheduled = 0L;
 		long work = 0L;
@@ -80,7 +315,7 @@ public class LeastLaxityScheduler implements Comparator<Task> {
 			work = task.getRemainingWork();
 			// if the work scheduled for previous tasks plus the work left for this task exceed
 			// its deadline the schedule is infeasible
-			if ((now + scheduled + work) > task.getDue().getTimeInMillis()) {
+			if (task.hasDue() && (now + scheduled + work) > task.getDueMs()) {
 				return false;
 			}
 			scheduled += work;
@@ -91,90 +326,150 @@ public class LeastLaxityScheduler implements Comparator<Task> {
 	
 
 	/**
-	 * Check Schedulability with respect to a daily freetime interval (sleep)
+	 * Check Schedulability with respect to a daily freetime interval (sleep). The blocks are
+	 * merged into a BusyTimeline up to the latest deadline, each task then costs a binary
+	 * search for the instant its remaining work is done.
 	 * 
 	 * @param taskset
+	 *            list of open tasks (will be sorted)
 	 * @param unavailable
 	 *            Array of Time Intervals unavailable for scheduling (lunch, night...)
 	 * @return Long.MAX_VALUE if TaskSet is schedulable under given conditions or time in ms
 	 *         since epoch at which point deadline is missed
 	 */
-	public long hasMissedDeadLineInFuture(ArrayList<Task> taskset, PeriodicBlock[] unavailable) {	
-		// setup variables
-		long t = Calendar.getInstance().getTimeInMillis();
-		PeriodicBlock nextBlock = null; // next closest Block
-		int delta; // available time until next Periodic Block
-		ArrayList<Integer> remainingWork = new ArrayList<Integer>(taskset.size());
-
-
-		// Check if now is within a Periodic Block, if so move t to end of the Block
-		for (PeriodicBlock Bi : unavailable) {
-			if (Bi.isInBlock(t)) {
-				t = Bi.getComingEnd(t);
-				// Since Periodic Blocks are assumed to be disjoint, there is no need to
-				// recalculate nPeriods.
-				break;
-			}
+	public long hasMissedDeadLineInFuture(ArrayList<Task> taskset, PeriodicBlock[] unavailable) {
+		if (taskset.isEmpty()) {
+			return Long.MAX_VALUE;
 		}
-		// Sort the taskset by laxity and check if it is schedulable now or after the block
-		if(hasMissedTasks(taskset,t0)){
+		// Sort the taskset by laxity and check if it is schedulable now
+		if (hasMissedTasks(taskset, t0)) {
 			return t0;
 		}
+		long t = Calendar.getInstance().getTimeInMillis();
+		// blocks after the last deadline can not make a task miss it
+		long horizon = t;
 		for (Task task : taskset) {
-			remainingWork.add(task.getRemainingWork());
-		}
-		
-		//Try to schedule all tasks
-		while (!taskset.isEmpty()) {
-			// reset delta to maximum value to find new minimum
-			delta = Integer.MAX_VALUE;
-			// Only relevant if we have periodicBlocks
-			if (unavailable.length > 0) {
-				// Iterate over periodic Blocks to update nPeriods and find minimum delta to
-				// start of next block
-				for (PeriodicBlock Bi : unavailable) {
-				
-					int tmp = (int)( Bi.getComingStart(t) - t);
-					// find minimum time until next start of a periodic block
-					// delta = delta < tmp ? delta : tmp;
-					if (tmp < delta) {
-						delta = tmp;
-						nextBlock = Bi;
-					}
-				}
+			if (task.hasDue()) {
+				horizon = Math.max(horizon, task.getDueMs());
 			}
-			// assertion that actually upcoming periodic events exist
-			assert delta<Integer.MAX_VALUE : delta;
-						
-			// schedule work of tasks as long as free time available
-			while (delta > 0 && !taskset.isEmpty()) {
-				Task task = taskset.get(0);
-				
-				// More work todo than time left to deadline--> will fail
-				if(t+remainingWork.get(0) > task.getDue().getTimeInMillis()){
-					return t;
-				}
+		}
+		BusyTimeline timeline = new BusyTimeline(unavailable, t, horizon);
 
-				if (delta >= remainingWork.get(0)) {
-					delta = (int) (delta - remainingWork.get(0));
-					// task is fully scheduled, remove it
-					taskset.remove(0);
-					remainingWork.remove(0);
-				} else {
-					// "use" delta for work on first task
-					remainingWork.set(0, remainingWork.get(0) - delta);
-					delta = 0;
-				}
-			}
-			// closest Block found : add its length to t
-			if (nextBlock != null) {
-				// move t to end of nextBlock for coming iteration while(!taskSet.isEmpty())
-				t = nextBlock.getComingEnd(t);
+		// schedule the tasks one after the other in free time
+		for (Task task : taskset) {
+			long done = timeline.getCompletion(t, task.getRemainingWork());
+			if (task.hasDue() && done > task.getDueMs()) {
+				return t;
 			}
-		} // while(!taskSet.isEmpty())
+			t = done;
+		}
 		return Long.MAX_VALUE;
 	}
 
+	/**
+	 * Simulate the least laxity schedule of a snapshot of tasks from the scheduling time on.
+	 * Tasks are worked on one after the other in free time, the blocks are expanded into a
+	 * BusyTimeline that is extended until it covers the last completion. The list is not
+	 * modified.
+	 * 
+	 * @param taskset
+	 *            open tasks
+	 * @param unavailable
+	 *            Array of Time Intervals unavailable for scheduling (lunch, night...)
+	 * @return plan with slices, completion and slack of each task. If the blocks leave no free
+	 *         time the plan has no slices and tasks with remaining work complete at
+	 *         SchedulePlan.NEVER
+	 */
+	public SchedulePlan plan(List<Task> taskset, PeriodicBlock[] unavailable) {
+		Task[] tasks = taskset.toArray(new Task[taskset.size()]);
+		int[] order = order(tasks);
+		long horizon = t0;
+		for (Task task : tasks) {
+			horizon += Math.max(task.getRemainingWork(), 0);
+			if (task.hasDue()) {
+				horizon = Math.max(horizon, task.getDueMs());
+			}
+		}
+		/* no free time in a span that repeats every block is taken as none at all */
+		long coverSpan = 0;
+		for (PeriodicBlock block : unavailable) {
+			long firstEnd = Math.max(block.getStart(), t0) - t0 + block.getDuration();
+			coverSpan = Math.max(coverSpan, firstEnd + 2L * Math.max(block.getPeriod(), 0));
+		}
+		/*
+		 * time after the horizon of the timeline counts as free, extend until the plan ends
+		 * within it. Once the horizon covers the real end the simulation is exact, the horizon
+		 * at least doubles each pass, thus the number of passes is logarithmic.
+		 */
+		while (true) {
+			BusyTimeline timeline = new BusyTimeline(unavailable, t0, horizon);
+			SchedulePlan plan = simulate(tasks, order, timeline);
+			long end = plan.getSliceCount() > 0 ? plan.getSliceEnd(plan.getSliceCount() - 1) : t0;
+			if (end <= horizon) {
+				return plan;
+			}
+			long span = horizon - t0;
+			long free = timeline.getFreeTimeUntil(horizon);
+			if (free == 0 && span > coverSpan) {
+				return unschedulable(tasks, order);
+			}
+			/* work done after the horizon needs as much time per free time as before */
+			double ratio = free > 0 ? (double) span / free : 2.0;
+			long estimate = horizon + (long) Math.ceil((end - horizon) * ratio);
+			horizon = Math.max(estimate, horizon + Math.max(span, 1));
+		}
+	}
+
+	/**
+	 * Plan for blocks that leave no free time: tasks without remaining work are done at the plan
+	 * time, from the first task with remaining work on no task is completed
+	 */
+	private SchedulePlan unschedulable(Task[] tasks, int[] order) {
+		SchedulePlan plan = new SchedulePlan(t0, tasks.length);
+		long t = t0;
+		for (int i = 0; i < tasks.length; i++) {
+			Task task = tasks[order[i]];
+			long id = task.id != null ? task.id : -1;
+			if (task.getRemainingWork() > 0) {
+				t = SchedulePlan.NEVER;
+			}
+			long slack = task.hasDue() ? task.getDueMs() - t : SchedulePlan.NO_SLACK_LIMIT;
+			plan.addTask(id, t, slack, plan.getSliceCount());
+		}
+		return plan;
+	}
+
+	/**
+	 * Work on tasks in the given order in the gaps of timeline. The gap cursor only moves
+	 * forward, thus the simulation is linear in tasks and busy intervals.
+	 */
+	private SchedulePlan simulate(Task[] tasks, int[] order, BusyTimeline timeline) {
+		SchedulePlan plan = new SchedulePlan(t0, tasks.length);
+		long t = t0;
+		int busy = 0; // next busy interval that ends after t
+		for (int i = 0; i < tasks.length; i++) {
+			Task task = tasks[order[i]];
+			long id = task.id != null ? task.id : -1;
+			int first = plan.getSliceCount();
+			long left = task.getRemainingWork();
+			while (left > 0) {
+				if (busy < timeline.size() && timeline.getBusyStart(busy) <= t) {
+					t = Math.max(t, timeline.getBusyEnd(busy));
+					busy++;
+					continue;
+				}
+				long gapEnd = busy < timeline.size() ? timeline.getBusyStart(busy) : Long.MAX_VALUE;
+				long end = gapEnd - t < left ? gapEnd : t + left;
+				plan.addSlice(id, t, end);
+				left -= end - t;
+				t = end;
+			}
+			long slack = task.hasDue() ? task.getDueMs() - t : SchedulePlan.NO_SLACK_LIMIT;
+			plan.addTask(id, t, slack, first);
+		}
+		return plan;
+	}
+
 	/**
 	 * Necessary Condition: taskset contains no tasks with negative laxity
 	 * @param taskset (will be sorted)
@@ -182,7 +477,7 @@ public class LeastLaxityScheduler implements Comparator<Task> {
 	 * @return true if not violated at current time
 	 */
 	public boolean hasMissedTasks(List<Task> taskset, long schedulingTime){
-		Collections.sort(taskset, this);
+		sort(taskset);
 		// necessary condition: most urgent task must have positive laxity
 		if(taskset.get(0).getLaxity(schedulingTime) <= 0){
 			return true;
@@ -204,7 +499,7 @@ public class LeastLaxityScheduler implements Comparator<Task> {
 	 */
 	public boolean isSchedulable(List<Task> taskset, int buffer) {
 		// Sort the taskset by laxity
-		Collections.sort(taskset, this);
+		sort(taskset);
 		long now = Calendar.getInstance().getTimeInMillis();
 		long scheduled = 0L;
 		long work = 0L;
@@ -212,7 +507,7 @@ public class LeastLaxityScheduler implements Comparator<Task> {
 			work = task.getRemainingWork();
 			// if the work scheduled for previous tasks plus the work left for this task exceed
 			// its deadline the schedule is infeasible
-			if ((now + scheduled + work) > task.getDue().getTimeInMillis()) {
+			if (task.hasDue() && (now + scheduled + work) > task.getDueMs()) {
 				return false;
 			}
 			scheduled += work + buffer;
@@ -9,15 +9,35 @@
  ******************************************************************************/
 package de.ruschival.WhatNext.RFC554;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import de.ruschival.WhatNext.*;
-import android.text.format.DateFormat;
 
 /**
  * @author Thomas Ruschival ICSExporter
  */
 public class VcalConverter implements IvcalFieldTags, IwhatNextFieldTags {
+	/**
+	 * Seconds of a UTC day
+	 */
+	private static final int SECONDS_PER_DAY = 24 * 3600;
+
+	/**
+	 * Write a task as complete ical/VCAL with headers to writer, see
+	 * getTaskiCal(). Use VcalWriter for many tasks.
+	 * 
+	 * @param task
+	 * @param writer
+	 *            destination, should be buffered, is not closed
+	 * @throws IOException
+	 */
+	public static void writeTaskiCal(Task task, Writer writer) throws IOException {
+		VcalWriter vcal = new VcalWriter(writer);
+		vcal.write(task);
+		vcal.finish();
+	}
 
 	/**
 	 * Export a complete ical/VCAL String with headers where the current task is
@@ -76,15 +96,70 @@ public class VcalConverter implements IvcalFieldTags, IwhatNextFieldTags {
 	}
 
 	/**
-	 * Format a Calendar into a RFC5545 Date Representation yyyyMMddThhmmssZ
+	 * Format a Calendar into a RFC5545 UTC Date Representation yyyyMMddThhmmssZ
 	 * 
 	 * @param cal
 	 * @return Formatted String
 	 */
 	public static String formatRFC5545DateTime(Calendar cal) {
-		String retval = (String) DateFormat.format("yyyyMMdd", cal);
-		retval += "T" + DateFormat.format("kkmmss", cal) + "Z";
-		return retval;
+		StringBuilder builder = new StringBuilder(16);
+		appendRFC5545DateTime(builder, cal.getTimeInMillis());
+		return builder.toString();
+	}
+
+	/**
+	 * Append a point in time as RFC5545 UTC Date Representation yyyyMMddThhmmssZ.
+	 * The fields are computed from the epoch value without Calendar or
+	 * intermediate Strings.
+	 * 
+	 * @param builder
+	 *            destination
+	 * @param ms
+	 *            milliseconds since epoch
+	 */
+	public static void appendRFC5545DateTime(StringBuilder builder, long ms) {
+		long seconds = ms / 1000;
+		if (ms % 1000 < 0) {
+			seconds--;
+		}
+		long days = seconds / SECONDS_PER_DAY;
+		int secOfDay = (int) (seconds % SECONDS_PER_DAY);
+		if (secOfDay < 0) {
+			secOfDay += SECONDS_PER_DAY;
+			days--;
+		}
+		/* civil date from days since 1970-01-01, proleptic Gregorian */
+		days += 719468;
+		long era = (days >= 0 ? days : days - 146096) / 146097;
+		int dayOfEra = (int) (days - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		appendDigits(builder, (int) year, 4);
+		appendDigits(builder, month, 2);
+		appendDigits(builder, day, 2);
+		builder.append('T');
+		appendDigits(builder, secOfDay / 3600, 2);
+		appendDigits(builder, secOfDay / 60 % 60, 2);
+		appendDigits(builder, secOfDay % 60, 2);
+		builder.append('Z');
+	}
+
+	/**
+	 * Append value with leading zeros to width digits
+	 */
+	private static void appendDigits(StringBuilder builder, int value, int width) {
+		int divisor = 1;
+		for (int i = 1; i < width; i++) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			builder.append((char) ('0' + value / divisor % 10));
+		}
 	}
 
 	/**
@@ -121,24 +196,30 @@ public class VcalConverter implements IvcalFieldTags, IwhatNextFieldTags {
 		builder.append(VEVENT_BEGIN);
 		/* NOTE: DTSTAMP or UID not both! */
 		builder.append(UID).append(buildUID(task,"EVT")).append("\n");
-		builder.append(DTEND).append(formatRFC5545DateTime(task.getDue())).append("\n");
+		if (task.hasDue()) {
+			builder.append(DTEND);
+			appendRFC5545DateTime(builder, task.getDueMs());
+			builder.append("\n");
+		}
 		addCommonFields(task, builder);
 		appendAlarms(task, builder);
 		builder.append(VEVENT_TRANSP).append("TRANSPARENT\n");
 		builder.append(VEVENT_END);
-		builder.trimToSize();
 	}
 
 	public static void addCommonFields(Task task, StringBuilder builder) {
 		/** StartDateTime */
-		builder.append(START).append(formatRFC5545DateTime(task.getStart())).append("\n");
+		builder.append(START);
+		appendRFC5545DateTime(builder, task.getStartMs());
+		builder.append("\n");
 		/** Put our CREATED here */
-		Calendar cal = Calendar.getInstance();
-		cal.setTimeInMillis(task.dtstamp);
-		builder.append(CREATED).append(formatRFC5545DateTime(cal)).append("\n");
+		builder.append(CREATED);
+		appendRFC5545DateTime(builder, task.dtstamp);
+		builder.append("\n");
 		/** synchronization time stamp */
-		cal.setTimeInMillis(task.lastmodified);
-		builder.append(LAST_MOD).append(formatRFC5545DateTime(cal)).append("\n");
+		builder.append(LAST_MOD);
+		appendRFC5545DateTime(builder, task.lastmodified);
+		builder.append("\n");
 		/** TaskName = Summary */
 		builder.append(SUMMARY).append(task.name).append("\n");
 
@@ -205,7 +286,11 @@ public class VcalConverter implements IvcalFieldTags, IwhatNextFieldTags {
 		/** NOTE: DTSTAMP or UID not both! */
 		builder.append(UID).append(buildUID(task,"TDO")).append("\n");
 		/** Due DateTIME */
-		builder.append(VTODO_DUE).append(formatRFC5545DateTime(task.getDue())).append("\n");
+		if (task.hasDue()) {
+			builder.append(VTODO_DUE);
+			appendRFC5545DateTime(builder, task.getDueMs());
+			builder.append("\n");
+		}
 		/** percent-complete in INTEGER */
 		int perc = (int) (task.getProgress() * 100);
 		builder.append(VTODO_PERC_COMPLETE).append(String.format("%d", perc)).append("\n");
@@ -228,9 +313,46 @@ public class VcalConverter implements IvcalFieldTags, IwhatNextFieldTags {
 	 * @return uid string
 	 */
 	public static String buildUID(Task task, String type) {
+		return buildUID(task.dtstamp, task.id, type);
+	}
+
+	/**
+	 * Build the unique identifier from creation time and id, e.g. for a task
+	 * that has been deleted
+	 * 
+	 * @param created
+	 *            creation time stamp of the task
+	 * @param id
+	 *            task id
+	 * @param type
+	 *            "EVT" or "TDO"
+	 * @return uid string
+	 */
+	public static String buildUID(long created, long id, String type) {
 		StringBuilder uid = new StringBuilder(32);
-		uid.append(task.dtstamp+task.id).append("-").append(type).append("@WhatNext");
+		uid.append(created + id).append("-").append(type).append("@WhatNext");
 		return uid.toString();
 	}
 
+	/**
+	 * Append VEVENT and VTODO items that mark a deleted task as cancelled
+	 * 
+	 * @param created
+	 *            creation time stamp of the deleted task
+	 * @param id
+	 *            id of the deleted task
+	 * @param builder
+	 *            where to append the information
+	 */
+	public static void generateCancelled(long created, long id, StringBuilder builder) {
+		builder.append(VEVENT_BEGIN);
+		builder.append(UID).append(buildUID(created, id, "EVT")).append("\n");
+		builder.append(STATUS).append(STATUS_CANCELLED).append("\n");
+		builder.append(VEVENT_END);
+		builder.append(VTODO_BEGIN);
+		builder.append(UID).append(buildUID(created, id, "TDO")).append("\n");
+		builder.append(STATUS).append(STATUS_CANCELLED).append("\n");
+		builder.append(VTODO_END);
+	}
+
 }
@@ -0,0 +1,533 @@
+/******************************************************************************
+ * \filename VcalParser.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Streaming import of VTODO/VEVENT items from an iCalendar stream
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.RFC554;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import de.ruschival.WhatNext.Reminder;
+import de.ruschival.WhatNext.Task;
+
+/**
+ * @author ruschi
+ *
+ *         Reads an iCalendar stream line by line, unfolds continuation lines and turns each VTODO
+ *         and VEVENT item with its VALARM elements into a Task with Reminders. Each task is
+ *         handed to the TaskHandler as soon as its item ends, thus memory does not grow with the
+ *         size of the stream. VEVENTs that mirror a VTODO of a WhatNext export (UID ending with
+ *         -EVT@WhatNext) and cancelled items are skipped.
+ */
+public class VcalParser implements IvcalFieldTags, IwhatNextFieldTags {
+	/**
+	 * Receiver of parsed tasks
+	 */
+	public interface TaskHandler {
+		/**
+		 * Called for each complete VTODO/VEVENT item
+		 *
+		 * @param task
+		 *            new task without id
+		 * @param categoryNames
+		 *            names given in CATEGORIES, may be empty
+		 * @throws IOException
+		 */
+		void onTask(Task task, List<String> categoryNames) throws IOException;
+	}
+
+	/**
+	 * Suffix of UIDs of VEVENTs written by VcalConverter.generateVevent()
+	 */
+	private static final String EXPORTED_EVENT_UID = "-EVT@WhatNext";
+
+	/**
+	 * Source
+	 */
+	private final BufferedReader reader;
+
+	/**
+	 * Line read ahead while unfolding, null if none
+	 */
+	private String lookahead;
+
+	/**
+	 * Calendar for UTC date-times, reused
+	 */
+	private final Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+	/**
+	 * Calendar for floating date-times in local time, reused
+	 */
+	private final Calendar local = Calendar.getInstance();
+
+	/**
+	 * State of the current item
+	 */
+	private Task task;
+	private boolean isEvent;
+	private String uid;
+	private boolean cancelled;
+	private ArrayList<String> categoryNames;
+	/** alarms of current item: fire time offset or absolute fire time and their reference */
+	private final ArrayList<long[]> alarms = new ArrayList<long[]>();
+	private boolean inAlarm;
+	private long[] alarm;
+	/** depth of unknown components nested in the current item */
+	private int skipDepth;
+
+	/** references of alarm triggers */
+	private static final long TRIGGER_START = 0;
+	private static final long TRIGGER_END = 1;
+	private static final long TRIGGER_ABSOLUTE = 2;
+
+	/**
+	 * Constructor
+	 *
+	 * @param reader
+	 *            source, buffered if not already a BufferedReader
+	 */
+	public VcalParser(Reader reader) {
+		if (reader instanceof BufferedReader) {
+			this.reader = (BufferedReader) reader;
+		} else {
+			this.reader = new BufferedReader(reader, 8192);
+		}
+	}
+
+	/**
+	 * Read the stream to its end, does not close it
+	 *
+	 * @param handler
+	 *            receiver of the tasks
+	 * @return number of tasks handed to handler
+	 * @throws IOException
+	 */
+	public int parse(TaskHandler handler) throws IOException {
+		int count = 0;
+		String line;
+		while ((line = readUnfolded()) != null) {
+			int colon = findValueSeparator(line);
+			if (colon < 0) {
+				continue;
+			}
+			int semicolon = line.indexOf(';');
+			int nameEnd = (semicolon >= 0 && semicolon < colon) ? semicolon : colon;
+			String name = line.substring(0, nameEnd).trim().toUpperCase();
+			String params = line.substring(nameEnd, colon).toUpperCase();
+			String value = line.substring(colon + 1);
+
+			if (name.equals("BEGIN")) {
+				begin(value.trim().toUpperCase());
+			} else if (name.equals("END")) {
+				if (end(value.trim().toUpperCase())) {
+					handler.onTask(task, categoryNames);
+					task = null;
+					count++;
+				}
+			} else if (task != null && skipDepth == 0) {
+				if (inAlarm) {
+					if (name.equals("TRIGGER")) {
+						alarm = parseTrigger(params, value);
+					}
+				} else {
+					setProperty(name, params, value);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Handle BEGIN of a component
+	 */
+	private void begin(String component) {
+		if (task == null) {
+			if (component.equals("VTODO") || component.equals("VEVENT")) {
+				task = new Task();
+				isEvent = component.equals("VEVENT");
+				uid = null;
+				cancelled = false;
+				categoryNames = new ArrayList<String>();
+				alarms.clear();
+				inAlarm = false;
+				skipDepth = 0;
+			}
+		} else if (skipDepth == 0 && !inAlarm && component.equals("VALARM")) {
+			inAlarm = true;
+			alarm = null;
+		} else {
+			skipDepth++;
+		}
+	}
+
+	/**
+	 * Handle END of a component
+	 *
+	 * @return true if the current task is complete and has to be handed out
+	 */
+	private boolean end(String component) {
+		if (task == null) {
+			return false;
+		}
+		if (skipDepth > 0) {
+			skipDepth--;
+			return false;
+		}
+		if (inAlarm) {
+			if (component.equals("VALARM")) {
+				inAlarm = false;
+				if (alarm != null) {
+					alarms.add(alarm);
+				}
+			}
+			return false;
+		}
+		if (component.equals("VTODO") || component.equals("VEVENT")) {
+			addReminders(task);
+			boolean mirror = isEvent && uid != null && uid.endsWith(EXPORTED_EVENT_UID);
+			if (mirror || cancelled) {
+				task = null;
+				return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Apply a property of a VTODO/VEVENT to the current task
+	 */
+	private void setProperty(String name, String params, String value) {
+		if (is(name, SUMMARY)) {
+			task.name = unescape(value);
+		} else if (is(name, DESCRIPTION)) {
+			task.desc = unescape(value);
+		} else if (is(name, LOCATION)) {
+			task.location = unescape(value);
+		} else if (is(name, UID)) {
+			uid = value.trim();
+		} else if (is(name, PRIORITY)) {
+			/* 0 is undefined, 1 the highest priority */
+			int prio = (int) parseLong(value, 0);
+			if (prio > 0) {
+				task.setPriority(Math.min(prio - 1, Task.Priority.values().length - 1));
+			}
+		} else if (is(name, START)) {
+			long start = parseDateTime(params, value);
+			if (start > 0) {
+				task.setStart(start);
+			}
+		} else if (is(name, VTODO_DUE) || is(name, DTEND)) {
+			long due = parseDateTime(params, value);
+			if (due > 0) {
+				task.setDue(due);
+			}
+		} else if (is(name, CREATED)) {
+			task.dtstamp = Math.max(parseDateTime(params, value), 0);
+		} else if (is(name, DTSTAMP)) {
+			if (task.dtstamp == 0) {
+				task.dtstamp = Math.max(parseDateTime(params, value), 0);
+			}
+		} else if (is(name, LAST_MOD)) {
+			task.lastmodified = Math.max(parseDateTime(params, value), 0);
+		} else if (is(name, VTODO_PERC_COMPLETE) || is(name, X_WN_PERC_COMPLETE)) {
+			task.setProgress((int) parseLong(value, 0));
+		} else if (is(name, X_WN_WCET)) {
+			task.setWcet(parseLong(value, task.getWcet()));
+		} else if (is(name, X_WN_ACTUAL)) {
+			task.setActual(parseLong(value, 0));
+		} else if (is(name, STATUS)) {
+			if (value.trim().equalsIgnoreCase(STATUS_COMPLETE)) {
+				task.setProgress(1.0f);
+			} else if (value.trim().equalsIgnoreCase(STATUS_CANCELLED)) {
+				cancelled = true;
+			}
+		} else if (is(name, CATEGORIES)) {
+			for (String category : splitList(value)) {
+				if (category.length() > 0) {
+					categoryNames.add(category);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Convert the collected alarms to reminders relative to the due date. Alarms of tasks without
+	 * due date or after the due date are dropped.
+	 */
+	private void addReminders(Task target) {
+		if (!target.hasDue()) {
+			return;
+		}
+		long due = target.getDueMs();
+		for (long[] trigger : alarms) {
+			long fireAt;
+			if (trigger[0] == TRIGGER_ABSOLUTE) {
+				fireAt = trigger[1];
+			} else if (trigger[0] == TRIGGER_END) {
+				fireAt = due + trigger[1];
+			} else {
+				fireAt = target.getStartMs() + trigger[1];
+			}
+			if (fireAt <= due) {
+				target.add(new Reminder(due - fireAt));
+			}
+		}
+	}
+
+	/**
+	 * Parse a TRIGGER value, either a signed DURATION or an absolute DATE-TIME
+	 *
+	 * @return {reference, offset or time in ms} or null if invalid
+	 */
+	private long[] parseTrigger(String params, String value) {
+		if (params.contains("VALUE=DATE-TIME")) {
+			long time = parseDateTime(params, value);
+			return time > 0 ? new long[] { TRIGGER_ABSOLUTE, time } : null;
+		}
+		long offset = parseDuration(value.trim());
+		if (offset == Long.MIN_VALUE) {
+			return null;
+		}
+		long related = params.contains("RELATED=END") ? TRIGGER_END : TRIGGER_START;
+		return new long[] { related, offset };
+	}
+
+	/**
+	 * Parse a RFC5545 DURATION, e.g. -PT15M or P1DT2H. Also accepts units after T that belong
+	 * before it (-PT1D) as written by older WhatNext versions.
+	 *
+	 * @return signed duration in ms or Long.MIN_VALUE if invalid
+	 */
+	static long parseDuration(String value) {
+		int pos = 0;
+		int len = value.length();
+		long sign = 1;
+		if (pos < len && (value.charAt(pos) == '-' || value.charAt(pos) == '+')) {
+			sign = value.charAt(pos) == '-' ? -1 : 1;
+			pos++;
+		}
+		if (pos >= len || Character.toUpperCase(value.charAt(pos)) != 'P') {
+			return Long.MIN_VALUE;
+		}
+		pos++;
+		boolean time = false;
+		long total = 0;
+		long number = -1;
+		for (; pos < len; pos++) {
+			char c = Character.toUpperCase(value.charAt(pos));
+			if (c >= '0' && c <= '9') {
+				number = (number < 0 ? 0 : number * 10) + (c - '0');
+				continue;
+			}
+			if (c == 'T') {
+				time = true;
+				continue;
+			}
+			if (number < 0) {
+				return Long.MIN_VALUE;
+			}
+			switch (c) {
+			case 'W':
+				total += number * 7 * 24 * 3600 * 1000;
+				break;
+			case 'D':
+				total += number * 24 * 3600 * 1000;
+				break;
+			case 'H':
+				total += number * 3600 * 1000;
+				break;
+			case 'M':
+				/* minutes, months are not defined for DURATION */
+				total += number * (time ? 60 * 1000 : 30L * 24 * 3600 * 1000);
+				break;
+			case 'S':
+				total += number * 1000;
+				break;
+			default:
+				return Long.MIN_VALUE;
+			}
+			number = -1;
+		}
+		if (number >= 0) {
+			/* digits without unit */
+			return Long.MIN_VALUE;
+		}
+		return sign * total;
+	}
+
+	/**
+	 * Parse a DATE or DATE-TIME value: yyyyMMdd, yyyyMMddTHHmmss (local or TZID parameter) or
+	 * yyyyMMddTHHmmssZ (UTC)
+	 *
+	 * @param params
+	 *            parameters of the property (upper case), may contain TZID
+	 * @param value
+	 * @return time in ms since epoch or -1 if invalid
+	 */
+	long parseDateTime(String params, String value) {
+		value = value.trim();
+		int len = value.length();
+		if (len < 8) {
+			return -1;
+		}
+		int year = digits(value, 0, 4);
+		int month = digits(value, 4, 2);
+		int day = digits(value, 6, 2);
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+		if (len >= 15 && value.charAt(8) == 'T') {
+			hour = digits(value, 9, 2);
+			minute = digits(value, 11, 2);
+			second = digits(value, 13, 2);
+		}
+		if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+			return -1;
+		}
+		Calendar cal = local;
+		if (value.charAt(len - 1) == 'Z') {
+			cal = utc;
+		} else {
+			int tzid = params.indexOf("TZID=");
+			if (tzid >= 0) {
+				int tzEnd = params.indexOf(';', tzid);
+				String zone = params.substring(tzid + 5, tzEnd < 0 ? params.length() : tzEnd);
+				cal = Calendar.getInstance(TimeZone.getTimeZone(zone.replace("\"", "")));
+			}
+		}
+		cal.clear();
+		cal.set(year, month - 1, day, hour, minute, second);
+		return cal.getTimeInMillis();
+	}
+
+	/**
+	 * Read the next logical line, continuation lines starting with space or tab are appended
+	 *
+	 * @return unfolded line or null at end of stream
+	 */
+	private String readUnfolded() throws IOException {
+		String line = lookahead != null ? lookahead : reader.readLine();
+		lookahead = null;
+		if (line == null) {
+			return null;
+		}
+		StringBuilder unfolded = null;
+		String next;
+		while ((next = reader.readLine()) != null && next.length() > 0
+				&& (next.charAt(0) == ' ' || next.charAt(0) == '\t')) {
+			if (unfolded == null) {
+				unfolded = new StringBuilder(line);
+			}
+			unfolded.append(next, 1, next.length());
+		}
+		lookahead = next;
+		return unfolded == null ? line : unfolded.toString();
+	}
+
+	/**
+	 * Position of the colon separating name and parameters from the value, colons inside
+	 * quoted parameter values are skipped
+	 *
+	 * @return index or -1
+	 */
+	private static int findValueSeparator(String line) {
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ':' && !quoted) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compare a property name with a tag constant, e.g. "SUMMARY" with "SUMMARY:"
+	 */
+	private static boolean is(String name, String tag) {
+		return tag.length() == name.length() + 1 && tag.startsWith(name);
+	}
+
+	/**
+	 * Resolve RFC5545 TEXT escapes \n \, \; and \\
+	 */
+	static String unescape(String value) {
+		if (value.indexOf('\\') < 0) {
+			return value;
+		}
+		StringBuilder text = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char next = value.charAt(++i);
+				text.append(next == 'n' || next == 'N' ? '\n' : next);
+			} else {
+				text.append(c);
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Split a comma separated list, escaped commas are kept in the element
+	 */
+	private static List<String> splitList(String value) {
+		ArrayList<String> list = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == ',') {
+				list.add(unescape(value.substring(start, i)).trim());
+				start = i + 1;
+			}
+		}
+		list.add(unescape(value.substring(start)).trim());
+		return list;
+	}
+
+	/**
+	 * Parse a decimal number
+	 *
+	 * @return value or defaultValue if invalid
+	 */
+	private static long parseLong(String value, long defaultValue) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException exc) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Parse count decimal digits at offset
+	 *
+	 * @return value or -1 if not all are digits
+	 */
+	private static int digits(String value, int offset, int count) {
+		int result = 0;
+		for (int i = offset; i < offset + count; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+}
@@ -0,0 +1,100 @@
+/******************************************************************************
+ * \filename VcalWriter.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Streaming export of many tasks into one VCALENDAR
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.RFC554;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import de.ruschival.WhatNext.Task;
+
+/**
+ * @author ruschi
+ *
+ *         Writes a single VCALENDAR with each task as VEVENT + VTODO item directly to a Writer.
+ *         Each task is built in one reused StringBuilder and handed to the writer before the
+ *         next one, thus memory does not grow with the number of tasks. The caller should pass
+ *         a buffered writer and close it.
+ */
+public class VcalWriter implements IvcalFieldTags {
+	/**
+	 * Destination
+	 */
+	private final Writer writer;
+
+	/**
+	 * Buffer for the items of one task, reused
+	 */
+	private final StringBuilder taskBuilder = new StringBuilder(2048);
+
+	/**
+	 * Number of tasks written
+	 */
+	private int count = 0;
+
+	/**
+	 * Constructor, writes the VCALENDAR header
+	 *
+	 * @param writer
+	 *            destination, should be buffered
+	 * @throws IOException
+	 */
+	public VcalWriter(Writer writer) throws IOException {
+		this.writer = writer;
+		writer.write(VCAL_BEGIN);
+		writer.write(VCAL_VERSION);
+		writer.write(VCAL_PRODID);
+	}
+
+	/**
+	 * Append a task as VEVENT + VTODO item
+	 *
+	 * @param task
+	 * @throws IOException
+	 */
+	public void write(Task task) throws IOException {
+		taskBuilder.setLength(0);
+		VcalConverter.generateVevent(task, taskBuilder);
+		VcalConverter.generateVtodo(task, taskBuilder);
+		writer.append(taskBuilder);
+		count++;
+	}
+
+	/**
+	 * Append a deleted task as cancelled VEVENT + VTODO item, does not count
+	 * 
+	 * @param id
+	 *            id of the deleted task
+	 * @param created
+	 *            creation time stamp of the deleted task
+	 * @throws IOException
+	 */
+	public void writeDeleted(long id, long created) throws IOException {
+		taskBuilder.setLength(0);
+		VcalConverter.generateCancelled(created, id, taskBuilder);
+		writer.append(taskBuilder);
+	}
+
+	/**
+	 * Write the VCALENDAR trailer and flush, does not close the writer
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		writer.write(VCAL_END);
+		writer.flush();
+	}
+
+	/**
+	 * @return number of tasks written
+	 */
+	public int getCount() {
+		return count;
+	}
+}
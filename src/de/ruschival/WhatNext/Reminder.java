@@ -51,6 +51,12 @@ public class Reminder {
 	 */
 	public String taskName;
 
+	/**
+	 * Absolute time of dispatch in ms, only set for reminders read for notification
+	 * @see{de.ruschival.WhatNext.ReminderService}
+	 */
+	public long fireAt;
+
 	/**
 	 * Unique ID of this alarm
 	 */
@@ -101,6 +107,21 @@ public class Reminder {
 		this.state = SCHEDULED;
 	}
 
+	/**
+	 * Copy constructor
+	 * 
+	 * @param other
+	 *            reminder to copy
+	 */
+	public Reminder(Reminder other) {
+		this.id = other.id;
+		this.taskId = other.taskId;
+		this.delta = other.delta;
+		this.state = other.state;
+		this.taskName = other.taskName;
+		this.fireAt = other.fireAt;
+	}
+
 	/**
 	 * @return the delta
 	 */
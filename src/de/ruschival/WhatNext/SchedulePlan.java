@@ -0,0 +1,263 @@
+/******************************************************************************
+ * \filename SchedulePlan.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ * \brief Simulated schedule of a task set, created by LeastLaxityScheduler.plan()
+ *
+ ******************************************************************************/
+
+package de.ruschival.WhatNext;
+
+/**
+ * @author Thomas Ruschival
+ *
+ *         Result of a simulation of the least laxity schedule: the tasks in scheduling order with
+ *         projected completion and slack, and the slices of free time (task, start, end) in
+ *         which each task is worked on. Slices are ordered by start time and do not overlap, a
+ *         task interrupted by a PeriodicBlock has several consecutive slices. All data is held
+ *         in primitive arrays, the plan does not reference the tasks it was built from.
+ */
+public final class SchedulePlan {
+	/**
+	 * Slack of tasks without due date
+	 */
+	public static final long NO_SLACK_LIMIT = Long.MAX_VALUE;
+
+	/**
+	 * Completion of tasks that are never worked on because no free time is left
+	 */
+	public static final long NEVER = Long.MAX_VALUE;
+
+	/**
+	 * Time the simulation started
+	 */
+	private final long planTime;
+
+	/* per task in scheduling order */
+	private long[] taskIds;
+	private long[] completion;
+	private long[] slack;
+	private int[] firstSlice;
+	private int taskCount = 0;
+
+	/* slices ordered by start */
+	private long[] sliceTask;
+	private long[] sliceStart;
+	private long[] sliceEnd;
+	private int sliceCount = 0;
+
+	/**
+	 * Empty plan, filled by LeastLaxityScheduler
+	 *
+	 * @param planTime
+	 *            time the simulation starts
+	 * @param tasks
+	 *            expected number of tasks
+	 */
+	SchedulePlan(long planTime, int tasks) {
+		this.planTime = planTime;
+		int capacity = Math.max(tasks, 1);
+		taskIds = new long[capacity];
+		completion = new long[capacity];
+		slack = new long[capacity];
+		firstSlice = new int[capacity];
+		sliceTask = new long[capacity];
+		sliceStart = new long[capacity];
+		sliceEnd = new long[capacity];
+	}
+
+	/**
+	 * Append the next task in scheduling order, its slices have to be added before
+	 *
+	 * @param id
+	 *            task id
+	 * @param done
+	 *            projected completion
+	 * @param taskSlack
+	 *            due date - done or NO_SLACK_LIMIT
+	 * @param first
+	 *            index of its first slice, equal to getSliceCount() if it has none
+	 */
+	void addTask(long id, long done, long taskSlack, int first) {
+		if (taskCount == taskIds.length) {
+			int capacity = taskCount * 2;
+			taskIds = grow(taskIds, capacity);
+			completion = grow(completion, capacity);
+			slack = grow(slack, capacity);
+			int[] slices = new int[capacity];
+			System.arraycopy(firstSlice, 0, slices, 0, taskCount);
+			firstSlice = slices;
+		}
+		taskIds[taskCount] = id;
+		completion[taskCount] = done;
+		slack[taskCount] = taskSlack;
+		firstSlice[taskCount] = first;
+		taskCount++;
+	}
+
+	/**
+	 * Append a slice of work, start has to be at or after the end of the last slice
+	 */
+	void addSlice(long id, long start, long end) {
+		if (sliceCount == sliceTask.length) {
+			int capacity = sliceCount * 2;
+			sliceTask = grow(sliceTask, capacity);
+			sliceStart = grow(sliceStart, capacity);
+			sliceEnd = grow(sliceEnd, capacity);
+		}
+		sliceTask[sliceCount] = id;
+		sliceStart[sliceCount] = start;
+		sliceEnd[sliceCount] = end;
+		sliceCount++;
+	}
+
+	/**
+	 * @return time the simulation started
+	 */
+	public long getPlanTime() {
+		return planTime;
+	}
+
+	/**
+	 * @return number of planned tasks
+	 */
+	public int getTaskCount() {
+		return taskCount;
+	}
+
+	/**
+	 * @param i
+	 *            position in scheduling order
+	 * @return task id
+	 */
+	public long getTaskId(int i) {
+		return taskIds[i];
+	}
+
+	/**
+	 * @param i
+	 *            position in scheduling order
+	 * @return projected completion in ms since epoch or NEVER
+	 */
+	public long getCompletion(int i) {
+		return completion[i];
+	}
+
+	/**
+	 * @param i
+	 *            position in scheduling order
+	 * @return due date - projected completion, negative if the deadline is missed,
+	 *         NO_SLACK_LIMIT if the task has no due date
+	 */
+	public long getSlack(int i) {
+		return slack[i];
+	}
+
+	/**
+	 * @param i
+	 *            position in scheduling order
+	 * @return projected start of work in ms since epoch, NEVER if the task is never worked on
+	 */
+	public long getStart(int i) {
+		int end = i + 1 < taskCount ? firstSlice[i + 1] : sliceCount;
+		return firstSlice[i] < end ? sliceStart[firstSlice[i]] : completion[i];
+	}
+
+	/**
+	 * Position of a task in the plan, linear search
+	 *
+	 * @param taskId
+	 * @return position in scheduling order or -1 if not planned
+	 */
+	public int indexOf(long taskId) {
+		for (int i = 0; i < taskCount; i++) {
+			if (taskIds[i] == taskId) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Projected time the first deadline is missed
+	 *
+	 * @return completion of the first task with negative slack, its due date if it completes
+	 *         NEVER, or Long.MAX_VALUE if no deadline is missed
+	 */
+	public long getFirstMissedDeadline() {
+		for (int i = 0; i < taskCount; i++) {
+			if (slack[i] < 0) {
+				/* slack is due - completion */
+				return completion[i] == NEVER ? completion[i] + slack[i] : completion[i];
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return number of slices
+	 */
+	public int getSliceCount() {
+		return sliceCount;
+	}
+
+	/**
+	 * @param j
+	 *            slice index
+	 * @return id of the task worked on in slice j
+	 */
+	public long getSliceTaskId(int j) {
+		return sliceTask[j];
+	}
+
+	/**
+	 * @param j
+	 *            slice index
+	 * @return start of slice j in ms since epoch
+	 */
+	public long getSliceStart(int j) {
+		return sliceStart[j];
+	}
+
+	/**
+	 * @param j
+	 *            slice index
+	 * @return end of slice j in ms since epoch
+	 */
+	public long getSliceEnd(int j) {
+		return sliceEnd[j];
+	}
+
+	/**
+	 * Slice in progress or next to come at time t, binary search
+	 *
+	 * @param t
+	 *            time in ms since epoch
+	 * @return slice index or -1 if all slices end at or before t
+	 */
+	public int getSliceAt(long t) {
+		int lo = 0;
+		int hi = sliceCount;
+		/* first slice ending after t */
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sliceEnd[mid] <= t) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo < sliceCount ? lo : -1;
+	}
+
+	/**
+	 * Copy of values with new length (Arrays.copyOf needs API 9)
+	 */
+	private static long[] grow(long[] values, int capacity) {
+		long[] grown = new long[capacity];
+		System.arraycopy(values, 0, grown, 0, Math.min(values.length, capacity));
+		return grown;
+	}
+}
@@ -30,6 +30,21 @@ public class Task {
 	 */
 	public static final String INTENT_EXTRA_TASKID = "de.ruschival.WhatNext.TaskID";
 
+	/**
+	 * Value of due for tasks without due date (as stored in database)
+	 */
+	public static final long NO_DUE = 0L;
+
+	/**
+	 * Laxity of completed tasks, they are scheduled last
+	 */
+	public static final long LAXITY_DONE = Long.MAX_VALUE;
+
+	/**
+	 * Laxity of open tasks without due date, scheduled before completed tasks
+	 */
+	public static final long LAXITY_NO_DUE = Long.MAX_VALUE - Integer.MAX_VALUE;
+
 	/**
 	 * Priorities of tasks
 	 */
@@ -119,20 +134,21 @@ public class Task {
 	private Priority priority;
 
 	/**
-	 * Date/time when task will be started (scheduled) the first time - if not
-	 * set explicitly, equal to created.<br />
+	 * Date/time (ms since epoch) when task will be started (scheduled) the
+	 * first time - if not set explicitly, equal to created.<br />
 	 * <a href="http://tools.ietf.org/html/rfc5545#section-3.8.2.2"> RFC5545:
 	 * DTSTART </a>
 	 */
-	private Calendar start;
+	private long startMs;
 
 	/**
-	 * Deadline/due date when task has to be complete, will be mapped to DTEND
-	 * since DUE is only defined for VTODO < br/>
+	 * Deadline/due date (ms since epoch) when task has to be complete, will be
+	 * mapped to DTEND since DUE is only defined for VTODO, NO_DUE if not set
+	 * < br/>
 	 * <a href="http://tools.ietf.org/html/rfc5545#section-3.8.2.2"> RFC5545
 	 * DTEND </a>
 	 */
-	private Calendar due;
+	private long dueMs = NO_DUE;
 
 	/**
 	 * Free text location where this task happens <br/>
@@ -201,35 +217,53 @@ public class Task {
 	 * this task will have its own values: in this case not showing accumulated
 	 * subtasks values.
 	 */
-	public boolean accumulateSubtasks;
+	private boolean accumulateSubtasks;
+
+	/**
+	 * Accumulated wcet, actual and progress of this task and its subtasks,
+	 * only valid if aggregatesValid is set. Cleared up the parent chain on
+	 * every change of wcet, actual, progress or the hierarchy.
+	 */
+	private long aggWcet;
+	private long aggActual;
+	private float aggProgress;
+	private boolean aggregatesValid = false;
 
 	/**
 	 * Default constructor initializing values for a new task
 	 */
 	public Task() {
+		init();
+		Calendar start = Calendar.getInstance();
+		/* nice default start date */
+		int minutes = start.get(Calendar.MINUTE);
+		int tmp = minutes / 10;
+		minutes = tmp * 10;
+		start.set(Calendar.MINUTE, minutes);
+		startMs = start.getTimeInMillis();
+	}
+
+	/**
+	 * Assign sensible default values to all fields but start
+	 */
+	private void init() {
 		/* this marks a task as "new" */
 		id = null;
-		/* Assign sensible default values */
-		name = new String("");
+		name = "";
 		priority = Priority.MEDIUM;
 		suspended = false;
 		progress = 0f;
 		wcet = MS_TO_H; // 1 hour
 		actual = 0;
-		start = Calendar.getInstance();
-		/* nice default start date */
-		int minutes = start.get(Calendar.MINUTE);
-		int tmp = minutes / 10;
-		minutes = tmp * 10;
-		start.set(Calendar.MINUTE, minutes);
+		dueMs = NO_DUE;
 		/* clear resumed */
 		resumed = 0;
-		desc = new String("");
-		location = new String("");
+		desc = "";
+		location = "";
 		categories = new HashMap<Long, Category>(1);
 		reminders = new ArrayList<Reminder>(1);
 		/* Delegated empty */
-		delegated = new String("");
+		delegated = "";
 	}
 
 	/**
@@ -261,7 +295,7 @@ public class Task {
 	 */
 	public Task(long id, String name, int prio, int suspended, float progress,
 			long wcet, long actual, long resumed, long startms, long duems) {
-		this();
+		init();
 		this.id = id;
 		this.priority = Priority.values()[prio];
 		this.name = name;
@@ -274,7 +308,7 @@ public class Task {
 		this.wcet = wcet;
 		this.actual = actual;
 		this.resumed = resumed;
-		this.start.setTimeInMillis(startms);
+		this.startMs = startms;
 
 		/** Set/clear due date (if exists) */
 		setDue(duems);
@@ -282,18 +316,20 @@ public class Task {
 
 	/**
 	 * Copy Constructor for Task, based on other task does not copy progress or
-	 * resumed actual is set to 0 since it is a new task
+	 * resumed actual is set to 0 since it is a new task. Copies the fields of
+	 * otherTask itself, not the values aggregated over its subtasks
 	 */
 	public Task(Task otherTask) {
 		/* this marks a task as "new" */
 		id = null;
 		/* Assign sensible default values */
 		name = otherTask.name;
-		priority = otherTask.getPriority();
-		suspended = otherTask.isSuspended();
-		start = otherTask.getStart();
-		due = otherTask.getDue();
-		wcet = otherTask.getWcet(); // 1 hour
+		priority = otherTask.priority;
+		suspended = otherTask.suspended;
+		startMs = otherTask.startMs;
+		dueMs = otherTask.dueMs;
+		/* own estimate, getWcet() would add the subtasks */
+		wcet = otherTask.wcet;
 		actual = 0;
 		resumed = 0;
 
@@ -304,6 +340,34 @@ public class Task {
 
 	}
 
+	/**
+	 * Copy of this task with the same id and state, e.g. to hand out tasks of
+	 * a shared store. Categories are shared, reminders are copied. Parent and
+	 * subtasks are not linked.
+	 * 
+	 * @return new task object
+	 */
+	public Task detachedCopy() {
+		Task copy = new Task(this);
+		copy.id = id;
+		copy.progress = progress;
+		copy.actual = actual;
+		copy.resumed = resumed;
+		copy.dtstamp = dtstamp;
+		copy.lastmodified = lastmodified;
+		copy.geoloc = geoloc;
+		copy.uri = uri;
+		copy.period = period;
+		copy.delegated = delegated;
+		copy.accumulateSubtasks = accumulateSubtasks;
+		copy.categories = new HashMap<Long, Category>(categories);
+		copy.reminders = new ArrayList<Reminder>(reminders.size());
+		for (Reminder reminder : reminders) {
+			copy.reminders.add(new Reminder(reminder));
+		}
+		return copy;
+	}
+
 	/**
 	 * Build a comma separated String of all Categories of this task
 	 * 
@@ -325,22 +389,43 @@ public class Task {
 	}
 
 	/**
-	 * Provide access to due date/time of task returns null if no due date set!
+	 * Provide a copy of the due date/time of task for display and editing,
+	 * changes have to be written back by setDueDate(). Returns null if no due
+	 * date set!
 	 * 
 	 * @return due date
 	 */
 	public Calendar getDue() {
-		return this.due;
+		if (dueMs == NO_DUE) {
+			return null;
+		}
+		Calendar due = Calendar.getInstance();
+		due.setTimeInMillis(dueMs);
+		return due;
+	}
+
+	/**
+	 * @return due date in ms or NO_DUE
+	 */
+	public long getDueMs() {
+		return dueMs;
+	}
+
+	/**
+	 * @return true if task has a due date
+	 */
+	public boolean hasDue() {
+		return dueMs != NO_DUE;
 	}
 
 	/**
 	 * Set Due date/time as calendar object
 	 * 
 	 * @param due
-	 *            due date
+	 *            due date or null to clear
 	 */
 	public void setDueDate(Calendar due) {
-		this.due = due;
+		dueMs = (due == null) ? NO_DUE : due.getTimeInMillis();
 	}
 
 	/**
@@ -348,27 +433,21 @@ public class Task {
 	 */
 	public void setDefaultDueDate() {
 		/* Task does not have due date set */
-		due = Calendar.getInstance();
+		Calendar due = Calendar.getInstance();
 		/* default due date 1 week ahead */
 		due.add(Calendar.WEEK_OF_YEAR, 1);
 		due.set(Calendar.MINUTE, 0);
+		dueMs = due.getTimeInMillis();
 	}
 
 	/**
-	 * Set Due date by ms or delete due by passing null
+	 * Set Due date by ms or delete due by passing NO_DUE
 	 * 
 	 * @param duems
-	 *            due in ms or null to clear
+	 *            due in ms or NO_DUE to clear
 	 */
 	public void setDue(long duems) {
-		if (duems == 0) {
-			due = null;
-		} else {
-			if (due == null) {
-				due = Calendar.getInstance();
-			}
-			due.setTimeInMillis(duems);
-		}
+		dueMs = duems;
 	}
 
 	/**
@@ -377,20 +456,35 @@ public class Task {
 	 * @param start
 	 */
 	public void setStart(Calendar start) {
-		this.start = start;
+		this.startMs = start.getTimeInMillis();
 	}
 
 	/**
-	 * Set the start date/time as Long (in ms)
+	 * Set the start date/time in ms
 	 * 
 	 * @param startms
 	 */
-	public void setStart(Long startms) {
-		this.start.setTimeInMillis(startms);
+	public void setStart(long startms) {
+		this.startMs = startms;
 	}
 
+	/**
+	 * Provide a copy of the start date/time for display and editing, changes
+	 * have to be written back by setStart()
+	 * 
+	 * @return start date
+	 */
 	public Calendar getStart() {
-		return this.start;
+		Calendar start = Calendar.getInstance();
+		start.setTimeInMillis(startMs);
+		return start;
+	}
+
+	/**
+	 * @return start date in ms
+	 */
+	public long getStartMs() {
+		return startMs;
 	}
 
 	/**
@@ -416,6 +510,7 @@ public class Task {
 		} else {
 			progress = 0.5f;
 		}
+		invalidateAggregates();
 	}
 
 	/**
@@ -469,6 +564,7 @@ public class Task {
 		} else {
 			actual = MS_TO_H;
 		}
+		invalidateAggregates();
 	}
 
 	/**
@@ -484,6 +580,7 @@ public class Task {
 		} else {
 			this.wcet = MS_TO_H;
 		}
+		invalidateAggregates();
 	}
 
 	/**
@@ -494,6 +591,7 @@ public class Task {
 	 */
 	public boolean markComplete() {
 		progress = 1.0f;
+		invalidateAggregates();
 		return stopAndUpdate(0);
 	}
 
@@ -559,13 +657,13 @@ public class Task {
 	 * @return current state based on scheduling information
 	 */
 	public State getState() {
-		Calendar now = Calendar.getInstance();
+		long now = System.currentTimeMillis();
 		State currentState = State.READY;
 
 		/** check if the task is completed !float!) */
 		if (progress <= 0.99) {
 			/** check if the task is overdue */
-			if (due != null && now.compareTo(due) >= 0) {
+			if (dueMs != NO_DUE && now >= dueMs) {
 				if (resumed > 0) {
 					currentState = State.RUNNING_OVERDUE;
 				} else {
@@ -575,7 +673,7 @@ public class Task {
 				if (resumed > 0) {
 					currentState = State.RUNNING;
 				} else { // Not Active
-					if (now.compareTo(start) < 1) {
+					if (now <= startMs) {
 						currentState= State.FUTURE;
 					} else{
 						currentState = State.READY;
@@ -598,7 +696,7 @@ public class Task {
 	public boolean start() {
 		if (resumed == 0) {
 			suspended = false;
-			resumed = Calendar.getInstance().getTimeInMillis();
+			resumed = System.currentTimeMillis();
 			return true;
 		} else {
 			return false;
@@ -621,6 +719,7 @@ public class Task {
 			suspended = false;
 			actual = actual + delta;
 			resumed = 0;
+			invalidateAggregates();
 			return true;
 		} else {
 			return false;
@@ -660,15 +759,9 @@ public class Task {
 	 * @return progress
 	 */
 	public float getProgress() {
-		float progress = this.progress;
-		long totalWork = 0;
-		float workComplete = 0;
 		if (accumulateSubtasks) {
-			for (Task child : subtasks) {
-				workComplete += child.getProgress() * child.getWcet();
-				totalWork += child.getWcet();
-			}
-			progress = workComplete / totalWork;
+			updateAggregates();
+			return aggProgress;
 		}
 		return progress;
 	}
@@ -679,11 +772,9 @@ public class Task {
 	 * @return the actual
 	 */
 	public long getActual() {
-		long actual = this.actual;
 		if (accumulateSubtasks) {
-			for (Task child : subtasks) {
-				actual += child.getActual();
-			}
+			updateAggregates();
+			return aggActual;
 		}
 		return actual;
 	}
@@ -694,13 +785,70 @@ public class Task {
 	 * @return the wcet
 	 */
 	public long getWcet() {
-		long wcet = this.wcet;
 		if (accumulateSubtasks) {
+			updateAggregates();
+			return aggWcet;
+		}
+		return wcet;
+	}
+
+	/**
+	 * Recalculate accumulated wcet, actual and progress from subtasks if
+	 * invalid. Each subtask is read once, its own aggregates are cached as well
+	 * thus repeated reads on an unchanged tree are O(1).
+	 */
+	private void updateAggregates() {
+		if (aggregatesValid) {
+			return;
+		}
+		long sumWcet = wcet;
+		long sumActual = actual;
+		long totalWork = 0;
+		float workComplete = 0;
+		if (subtasks != null) {
 			for (Task child : subtasks) {
-				wcet += child.getWcet();
+				long childWcet = child.getWcet();
+				workComplete += child.getProgress() * childWcet;
+				totalWork += childWcet;
+				sumWcet += childWcet;
+				sumActual += child.getActual();
 			}
 		}
-		return wcet;
+		aggWcet = sumWcet;
+		aggActual = sumActual;
+		/* without subtasks the own estimate is used */
+		aggProgress = totalWork > 0 ? workComplete / totalWork : progress;
+		aggregatesValid = true;
+	}
+
+	/**
+	 * Mark accumulated values of this task and all its parents as invalid
+	 */
+	private void invalidateAggregates() {
+		Task node = this;
+		while (node != null) {
+			node.aggregatesValid = false;
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * Check if wcet/actual/progress are accumulated from subtasks
+	 * 
+	 * @return accumulateSubtasks flag
+	 */
+	public boolean isAccumulateSubtasks() {
+		return accumulateSubtasks;
+	}
+
+	/**
+	 * Select if wcet/actual/progress are accumulated from subtasks
+	 * 
+	 * @param accumulate
+	 */
+	public void setAccumulateSubtasks(boolean accumulate) {
+		accumulateSubtasks = accumulate;
+		invalidateAggregates();
 	}
 
 	/**
@@ -716,17 +864,29 @@ public class Task {
 
 		/* in any case completed task are at the end of the list */
 		if (state == State.DONE) {
-			return Long.MAX_VALUE;
+			return LAXITY_DONE;
 		}
 		/** task without due date to the end but before completed tasks */
-		if (due == null) {
-			return Long.MAX_VALUE - Integer.MAX_VALUE;
+		if (dueMs == NO_DUE) {
+			return LAXITY_NO_DUE;
 		} else {
 			/** Incomplete Tasks with due date are scheduled normally */
-			return due.getTimeInMillis() - t0 - getRemainingWork();
+			return dueMs - t0 - getRemainingWork();
 		}
 	}
 
+	/**
+	 * Laxity at time 0, i.e. due - remaining work. Does not depend on the
+	 * scheduling time, getLaxity(t0) is getLaxityKey() - t0 unless the key is
+	 * one of the constants LAXITY_DONE or LAXITY_NO_DUE. Stored in the database
+	 * to order tasks by urgency.
+	 * 
+	 * @return laxity key in ms
+	 */
+	public long getLaxityKey() {
+		return getLaxity(0L);
+	}
+
 	/**
 	 * Get time difference between resumed timestamp and now
 	 * 
@@ -735,7 +895,7 @@ public class Task {
 	public long getWorkingTime() {
 		long diff = 0L;
 		if (resumed > 0L) {
-			long now = Calendar.getInstance().getTimeInMillis();
+			long now = System.currentTimeMillis();
 			diff = now - resumed;
 		}
 		return diff;
@@ -785,7 +945,10 @@ public class Task {
 	 *            / Null
 	 */
 	public void setParent(Task parent) {
+		/* old and new parents may accumulate this task */
+		invalidateAggregates();
 		this.parent = parent;
+		invalidateAggregates();
 	}
 
 	/**
@@ -799,12 +962,47 @@ public class Task {
 	}
 
 	/**
-	 * Access to HashSet of all direct sub-tasks
+	 * Access to HashSet of all direct sub-tasks, use addSubtask() and
+	 * removeSubtask() to modify it
 	 * 
-	 * @return subtasks
+	 * @return subtasks (empty set if task has no sub-tasks)
 	 */
 	public HashSet<Task> getSubtasks() {
+		if (subtasks == null) {
+			subtasks = new HashSet<Task>(4);
+		}
 		return subtasks;
 	}
 
+	/**
+	 * Make child a direct sub-task of this task
+	 * 
+	 * @param child
+	 * @return false if child is this task or one of its parents
+	 */
+	public boolean addSubtask(Task child) {
+		for (Task node = this; node != null; node = node.parent) {
+			if (node == child) {
+				return false;
+			}
+		}
+		if (child.parent != null && child.parent != this) {
+			child.parent.removeSubtask(child);
+		}
+		getSubtasks().add(child);
+		child.setParent(this);
+		return true;
+	}
+
+	/**
+	 * Remove child from the direct sub-tasks of this task
+	 * 
+	 * @param child
+	 */
+	public void removeSubtask(Task child) {
+		if (subtasks != null && subtasks.remove(child)) {
+			child.setParent(null);
+		}
+	}
+
 }
@@ -11,7 +11,6 @@
 package de.ruschival.WhatNext;
 
 import java.util.ArrayList;
-import java.util.Calendar;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.appwidget.AppWidgetManager;
@@ -64,6 +63,17 @@ public class WidgetDataService extends Service implements IntentConstants {
      */
     AppWidgetManager widgetMgr;
 
+    /**
+     * Flag to push even if the head task is unchanged, set if the widget ids were given
+     */
+    private boolean forceUpdate = false;
+
+    /**
+     * Rendered content of the last push, kept for the lifetime of the process since the service
+     * is stopped after each update
+     */
+    private static String lastFingerprint;
+
     /**
      * ServiceConnection Object to handle connect-/ disconnect
      */
@@ -85,7 +95,7 @@ public class WidgetDataService extends Service implements IntentConstants {
                 task = taskDBbinder.getTaskByID(taskID);
                 taskDBbinder.startTask(task);
             } else{
-                updateWidget(taskDBbinder.getTaskOverview());
+                updateWidget(taskDBbinder.getTopTasks(1), forceUpdate);
             }
             unbindService(serviceConnection);
             stopSelf();
@@ -116,8 +126,11 @@ public class WidgetDataService extends Service implements IntentConstants {
     public int onStartCommand(Intent intent, int flags, int startId) {
         action = 0;
         widgetMgr = AppWidgetManager.getInstance(WidgetDataService.this.getApplicationContext());
+        forceUpdate = false;
         if (intent.hasExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS)){
             allWidgetIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+            /* widgets requested an update, e.g. after being added */
+            forceUpdate = true;
         } else{
             allWidgetIds = widgetMgr.getAppWidgetIds(new ComponentName(getApplicationContext(),
                     WidgetListProvider.class));
@@ -132,43 +145,71 @@ public class WidgetDataService extends Service implements IntentConstants {
         return START_NOT_STICKY;
     }
 
-    private void updateWidget(ArrayList<Task> tasklist) {
+    /**
+     * Render the head task of tasklist to all widgets. Nothing is pushed if the rendered content
+     * equals the last push, unless forced.
+     * 
+     * @param tasklist
+     *            open tasks sorted by scheduler
+     * @param force
+     *            push even if unchanged, e.g. for newly added widgets
+     */
+    private void updateWidget(ArrayList<Task> tasklist, boolean force) {
+        Task task = null;
+        String prog = null;
+        String approxSlack = null;
+        int slackColor = 0;
+        CharSequence dueLabel = "----";
+        StringBuilder fingerprint = new StringBuilder(64);
+        if (!tasklist.isEmpty()){
+            task = tasklist.get(0);
+            /** progress */
+            prog = String.format("%d", (int) (task.getProgress() * 100));
+            /** Slack */
+            long slackTime = task.getLaxity(System.currentTimeMillis());
+            int remainingWork = task.getRemainingWork();
+            if (slackTime < (0.5 * remainingWork)){
+                slackColor = R.color.orange;
+            } else if (slackTime < remainingWork){
+                slackColor = R.color.yellow;
+            } else{
+                slackColor = R.color.green;
+            }
+            approxSlack = TimeConversion.getApproximateString(slackTime);
+            if (task.hasDue()){
+                long delta = task.getDueMs() - System.currentTimeMillis();
+                if (Math.abs(delta) >= TimeConversion.MS_TO_DAY / 2){
+                    dueLabel = DateFormat.format("dd.MM", task.getDueMs());
+                } else{
+                    dueLabel = DateFormat.format("kk:mm", task.getDueMs());
+                }
+            }
+            fingerprint.append(task.id).append('|').append(task.getState()).append('|')
+                    .append(prog).append('|').append(slackColor).append('|').append(approxSlack)
+                    .append('|').append(dueLabel).append('|').append(task.name);
+        }
+        synchronized (WidgetDataService.class){
+            if (!force && fingerprint.toString().equals(lastFingerprint)){
+                return;
+            }
+            lastFingerprint = fingerprint.toString();
+        }
 
         for (int widgetId : allWidgetIds){
             RemoteViews remoteViews = new RemoteViews(getPackageName(), R.layout.widget_row);
-            if (!tasklist.isEmpty()){
-                Task task = tasklist.get(0);
+            if (task != null){
                 /* Task name */
                 remoteViews.setTextViewText(R.id.taskName, task.name);
                 /** progress */
-                int prog = (int) (task.getProgress() * 100);
-                remoteViews.setTextViewText(R.id.progress, String.format("%d", prog));
+                remoteViews.setTextViewText(R.id.progress, prog);
                 /** Slack */
-                long slackTime = task.getLaxity(Calendar.getInstance().getTimeInMillis());
-                int remainingWork = task.getRemainingWork();
-                if (slackTime < (0.5 * remainingWork)){
-                    remoteViews.setTextColor(R.id.slack, getResources().getColor(R.color.orange));
-                } else if (slackTime < remainingWork){
-                    remoteViews.setTextColor(R.id.slack, getResources().getColor(R.color.yellow));
-                } else{
-                    remoteViews.setTextColor(R.id.slack, getResources().getColor(R.color.green));
-                }
+                remoteViews.setTextColor(R.id.slack, getResources().getColor(slackColor));
                 remoteViews.setViewVisibility(R.id.progress, View.VISIBLE);
-                String approxSlack = TimeConversion.getApproximateString(slackTime);
                 remoteViews.setTextViewText(R.id.slack, approxSlack);
                 remoteViews.setViewVisibility(R.id.slack, View.VISIBLE);
-                if (task.getDue() != null){
-                    long delta = task.getDue().getTimeInMillis() - System.currentTimeMillis();
-                    if (Math.abs(delta) >= TimeConversion.MS_TO_DAY / 2){
-                        remoteViews.setTextViewText(R.id.dueDate,
-                                DateFormat.format("dd.MM", task.getDue()));
-                    } else{
-                        remoteViews.setTextViewText(R.id.dueDate,
-                                DateFormat.format("kk:mm", task.getDue()));
-                    }
+                remoteViews.setTextViewText(R.id.dueDate, dueLabel);
+                if (task.hasDue()){
                     remoteViews.setViewVisibility(R.id.dueDate, View.VISIBLE);
-                } else{
-                    remoteViews.setTextViewText(R.id.dueDate, "----");
                 }
                 setTaskIcon(remoteViews, task.id, task.getState());
             } else{
@@ -0,0 +1,141 @@
+/******************************************************************************
+ * \filename CategorySnapshot.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Immutable lookup table of categories by id
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import de.ruschival.WhatNext.Category;
+
+/**
+ * @author ruschi
+ *
+ *         Immutable set of categories held as an array of ids in ascending order and the
+ *         categories at the same positions. Lookup by id is a binary search without boxing or
+ *         locking. Changes create a new snapshot, the writer publishes it through a volatile
+ *         reference so readers always see a complete set.
+ */
+final class CategorySnapshot {
+	/**
+	 * Snapshot without categories
+	 */
+	static final CategorySnapshot EMPTY = new CategorySnapshot(new long[0], new Category[0]);
+
+	/**
+	 * Category ids ascending
+	 */
+	private final long[] ids;
+
+	/**
+	 * Categories, values[i].id == ids[i]
+	 */
+	private final Category[] values;
+
+	private CategorySnapshot(long[] ids, Category[] values) {
+		this.ids = ids;
+		this.values = values;
+	}
+
+	/**
+	 * Build a snapshot of categories with valid ids
+	 *
+	 * @param categories
+	 */
+	static CategorySnapshot of(Collection<Category> categories) {
+		Category[] sorted = categories.toArray(new Category[categories.size()]);
+		Arrays.sort(sorted, new Comparator<Category>() {
+			@Override
+			public int compare(Category lhs, Category rhs) {
+				return lhs.id.compareTo(rhs.id);
+			}
+		});
+		long[] ids = new long[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			ids[i] = sorted[i].id;
+		}
+		return new CategorySnapshot(ids, sorted);
+	}
+
+	/**
+	 * Category by id
+	 *
+	 * @param id
+	 *            category id
+	 * @return category or null if unknown
+	 */
+	Category get(long id) {
+		int pos = Arrays.binarySearch(ids, id);
+		return pos >= 0 ? values[pos] : null;
+	}
+
+	/**
+	 * @return number of categories
+	 */
+	int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Copy of this snapshot with the category added or replaced
+	 *
+	 * @param category
+	 *            category with valid id
+	 * @return new snapshot
+	 */
+	CategorySnapshot with(Category category) {
+		long id = category.id;
+		int pos = Arrays.binarySearch(ids, id);
+		if (pos >= 0) {
+			Category[] newValues = values.clone();
+			newValues[pos] = category;
+			return new CategorySnapshot(ids, newValues);
+		}
+		pos = -pos - 1;
+		long[] newIds = new long[ids.length + 1];
+		Category[] newValues = new Category[ids.length + 1];
+		System.arraycopy(ids, 0, newIds, 0, pos);
+		System.arraycopy(values, 0, newValues, 0, pos);
+		newIds[pos] = id;
+		newValues[pos] = category;
+		System.arraycopy(ids, pos, newIds, pos + 1, ids.length - pos);
+		System.arraycopy(values, pos, newValues, pos + 1, ids.length - pos);
+		return new CategorySnapshot(newIds, newValues);
+	}
+
+	/**
+	 * Copy of this snapshot without the category
+	 *
+	 * @param id
+	 *            category id
+	 * @return new snapshot or this if the id is unknown
+	 */
+	CategorySnapshot without(long id) {
+		int pos = Arrays.binarySearch(ids, id);
+		if (pos < 0) {
+			return this;
+		}
+		long[] newIds = new long[ids.length - 1];
+		Category[] newValues = new Category[ids.length - 1];
+		System.arraycopy(ids, 0, newIds, 0, pos);
+		System.arraycopy(values, 0, newValues, 0, pos);
+		System.arraycopy(ids, pos + 1, newIds, pos, ids.length - pos - 1);
+		System.arraycopy(values, pos + 1, newValues, pos, ids.length - pos - 1);
+		return new CategorySnapshot(newIds, newValues);
+	}
+
+	/**
+	 * @return new list of all categories ordered by id
+	 */
+	ArrayList<Category> toList() {
+		return new ArrayList<Category>(Arrays.asList(values));
+	}
+}
@@ -0,0 +1,72 @@
+/******************************************************************************
+ * \filename DeletedTaskTable.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Tombstones of deleted tasks for incremental synchronization
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.db;
+
+/**
+ * @author ruschi
+ *
+ *         One row per deleted task, keeps what is needed to rebuild the UID of the exported
+ *         items and when the task was deleted. Task ids are never reused (autoincrement).
+ */
+public final class DeletedTaskTable {
+	/** Primary table name */
+	public static final String TABLE_NAME = "DeletedTasks";
+	/** Id of the deleted task */
+	public static final String COL_ID = "_id";
+	/** Creation time of the deleted task */
+	public static final String COL_CREA = "created";
+	/** Time of deletion */
+	public static final String COL_DEL = "deleted";
+
+	public static final int IDX_ID = 0;
+	public static final int IDX_CREA = 1;
+	public static final int IDX_DEL = 2;
+
+	public static final String[] ALL_COLUMNS = new String[] { COL_ID, COL_CREA, COL_DEL };
+
+	/** Statement for table creation */
+	public static final String STMT_CREATE = " CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "("
+				+ COL_ID + " INTEGER primary key, " + COL_CREA + " INTEGER, " + COL_DEL
+				+ " INTEGER)";
+
+	/** Index on deletion time for range queries */
+	public static final String STMT_CREATE_INDEX_DEL = " CREATE INDEX IF NOT EXISTS "
+				+ "idx_deletedtasks_deleted ON " + TABLE_NAME + "(" + COL_DEL + ")";
+
+	/**
+	 * Time in ms a tombstone is kept. A delta export since an older watermark misses the
+	 * deletions before, the client has to start over with a full export.
+	 */
+	public static final long RETENTION = 90L * 24 * 60 * 60 * 1000;
+
+	/** Statement for dropping table */
+	public static final String STMT_DROP = "DROP TABLE IF EXISTS " + TABLE_NAME;
+
+	/**
+	 * Latest modification or deletion time of all tasks, 0 if there is none
+	 */
+	public static final String STMT_GET_LATEST_MODIFICATION = " SELECT max(ifnull((SELECT max("
+				+ TaskTable.COL_LAST + ") FROM " + TaskTable.TABLE_NAME + "), 0), ifnull((SELECT max("
+				+ COL_DEL + ") FROM " + TABLE_NAME + "), 0))";
+
+	/**
+	 * Record a task as deleted at a time in ms, must run before the task record is removed
+	 */
+	public static final String STMT_INSERT_TOMBSTONE = " INSERT OR REPLACE into " + TABLE_NAME
+				+ "(" + COL_ID + ", " + COL_CREA + ", " + COL_DEL + ") SELECT " + TaskTable.COL_ID
+				+ ", " + TaskTable.COL_CREA + ", ? FROM "
+				+ TaskTable.TABLE_NAME + " WHERE " + TaskTable.COL_ID + "= ?";
+
+	/**
+	 * Remove tombstones deleted before a time in ms
+	 */
+	public static final String STMT_DELETE_BEFORE = " DELETE FROM " + TABLE_NAME + " WHERE "
+				+ COL_DEL + " < ?";
+}
@@ -14,7 +14,13 @@
 
 package de.ruschival.WhatNext.db;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
 
 import android.os.Handler;
 import de.ruschival.WhatNext.Category;
@@ -39,6 +45,16 @@ public interface ITaskDBService {
 	 * @return open tasks from table (sorted)
 	 */
 	public abstract ArrayList<Task> getTaskOverview();
+
+	/**
+	 * Return the most urgent non-completed tasks, e.g. for the widget. Will
+	 * run in caller thread.
+	 * 
+	 * @param k
+	 *            maximum number of tasks
+	 * @return up to k open tasks (sorted)
+	 */
+	public abstract ArrayList<Task> getTopTasks(int k);
 	
 
 	/**
@@ -52,9 +68,22 @@ public interface ITaskDBService {
 	public abstract Task getTaskByID(long id);
 
 	/**
-	 * Delete a single task from table
+	 * Retrieve a task and all its (indirect) sub-tasks with parent/sub-task
+	 * references linked. Served from the task cache if it is filled, otherwise
+	 * only the sub-tree is read from database with one query per level.
 	 * Will run in caller thread.
 	 * 
+	 * @param id
+	 *            - unique id of root task of the sub-tree
+	 * @return root task followed by its sub-tasks in breadth-first order,
+	 *         empty if the task does not exist
+	 */
+	public abstract ArrayList<Task> getSubtree(long id);
+
+	/**
+	 * Delete a single task from table. Returns at once, the task is removed
+	 * in the writer thread, until then getTasks() may still return it.
+	 * 
 	 * @param task
 	 *            object to delete
 	 */
@@ -78,6 +107,39 @@ public interface ITaskDBService {
 	 */
 	public abstract void updateTask(Task task);
 
+	/**
+	 * Insert a collection of tasks in a single transaction. Widgets are
+	 * updated once for the whole batch. Will block until the transaction is
+	 * committed. If it fails the SQLException is thrown and nothing is
+	 * changed, the ids stay null.
+	 * 
+	 * @param tasks
+	 *            tasks to insert, after the insert their ids are updated
+	 */
+	public abstract void insertTasks(List<Task> tasks);
+
+	/**
+	 * Update a collection of tasks in a single transaction including category
+	 * mapping and reminders. Widgets are updated once for the whole batch.
+	 * Will block until the transaction is committed. If it fails the
+	 * SQLException is thrown and nothing is changed.
+	 * 
+	 * @param tasks
+	 *            tasks to update
+	 */
+	public abstract void updateTasks(List<Task> tasks);
+
+	/**
+	 * Delete a collection of tasks in a single transaction. Widgets are
+	 * updated once for the whole batch. Will block until the transaction is
+	 * committed. If it fails the SQLException is thrown and nothing is
+	 * changed.
+	 * 
+	 * @param tasks
+	 *            tasks to delete
+	 */
+	public abstract void deleteTasks(List<Task> tasks);
+
 	/**
 	 * Start execution of a task and update the resumed field in table
 	 * 
@@ -127,14 +189,17 @@ public interface ITaskDBService {
 	public abstract ArrayList<Reminder> getReminders(long taskID);
 
 	/**
-	 * Delete this reminder from Database
+	 * Delete this reminder from Database. Returns at once, the record is
+	 * deleted in the writer thread.
 	 * 
 	 * @param ReminderID
 	 */
 	public abstract void deleteReminder(long ReminderID);
 
 	/**
-	 * Store a new reminder in the Database
+	 * Store a new reminder in the Database. Blocks until the writer thread
+	 * has inserted it, i.e. after all waiting writes incl. a running import
+	 * or export, thus it must not be called from the UI thread.
 	 * 
 	 * @param reminder
 	 * @return id of new reminder
@@ -150,6 +215,26 @@ public interface ITaskDBService {
 	 */
 	public abstract ArrayList<Reminder> getPendingReminders(int delta);
 
+	/**
+	 * Retrieve Reminders of open tasks with fire time in (after, until]
+	 * 
+	 * @param after
+	 *            exclusive lower bound in ms since epoch, usually time of last check
+	 * @param until
+	 *            inclusive upper bound in ms since epoch, usually now
+	 * @return list of reminders to dispatch
+	 */
+	public abstract ArrayList<Reminder> getPendingReminders(long after, long until);
+
+	/**
+	 * Find the earliest fire time of a scheduled reminder of an open task
+	 * 
+	 * @param after
+	 *            only fire times later than this (ms since epoch) are considered
+	 * @return fire time in ms since epoch or 0 if no reminder is pending
+	 */
+	public abstract long getNextReminderTime(long after);
+
 	/**
 	 * Spawn a new Thread and retrieve a sorted list of tasks. The list will be
 	 * placed in callbacks.content
@@ -161,6 +246,99 @@ public interface ITaskDBService {
 	 */
 	public abstract void getTaskList(Handler receiver, ListRunnable<Task> callback);
 
+	/**
+	 * Queue a job retrieving the ids of all tasks in scheduling order, without
+	 * building the tasks. The ids will be placed in callbacks.content
+	 * 
+	 * @param receiver
+	 *            Handler object or caller thread
+	 * @param callback
+	 *            Runnable object of caller thread
+	 */
+	public abstract void getTaskIDList(Handler receiver, ListRunnable<Long> callback);
+
+	/**
+	 * Retrieve the ids of tasks in scheduling order. Will run in caller thread.
+	 * 
+	 * @param filter
+	 *            only tasks in one of these categories, all tasks if null or
+	 *            empty
+	 * @return task ids sorted by least laxity
+	 */
+	public abstract ArrayList<Long> getTaskIDs(List<Category> filter);
+
+	/**
+	 * Retrieve tasks by id, e.g. the visible part of a list of ids. Will run
+	 * in caller thread.
+	 * 
+	 * @param ids
+	 *            task ids
+	 * @return tasks in order of ids, ids that do not exist are skipped
+	 */
+	public abstract ArrayList<Task> getTasksByID(List<Long> ids);
+
+	/**
+	 * Queue a job retrieving tasks by id, e.g. the window of a list around
+	 * the visible position. The tasks will be placed in callbacks.content
+	 * 
+	 * @param ids
+	 *            task ids
+	 * @param receiver
+	 *            Handler object or caller thread
+	 * @param callback
+	 *            Runnable object of caller thread
+	 */
+	public abstract void getTasksByID(List<Long> ids, Handler receiver, ListRunnable<Task> callback);
+
+	/**
+	 * Build an inverted index of categories for a list of task ids. Will run
+	 * in caller thread.
+	 * 
+	 * @param ids
+	 *            task ids, e.g. the sorted list of an adapter
+	 * @return bitset of positions in ids by category id
+	 */
+	public abstract HashMap<Long, BitSet> getCategoryIndex(List<Long> ids);
+
+	/**
+	 * Write all tasks as one iCalendar (VEVENT + VTODO per task) to writer.
+	 * Will run in caller thread.
+	 * 
+	 * @param writer
+	 *            destination, should be buffered, is not closed
+	 * @return number of tasks written
+	 * @throws IOException
+	 */
+	public abstract int exportTasks(Writer writer) throws IOException;
+
+	/**
+	 * Write the tasks created or modified since a watermark as one iCalendar, deleted tasks as
+	 * cancelled items with their former UID. Items at the watermark itself may be repeated in
+	 * the next call. Deleted tasks are kept for DeletedTaskTable.RETENTION (90 days), a
+	 * watermark older than that needs a full export with since 0. Will run in caller thread.
+	 * 
+	 * @param writer
+	 *            destination, should be buffered, is not closed
+	 * @param since
+	 *            watermark returned by the previous call, 0 for all tasks
+	 * @return watermark for the next call
+	 * @throws IOException
+	 */
+	public abstract long exportTasksSince(Writer writer, long since) throws IOException;
+
+	/**
+	 * Insert all VTODO and VEVENT items of an iCalendar stream as new tasks, including their
+	 * alarms and known categories. Will run in caller thread. Tasks are
+	 * inserted in batches, if a batch fails its SQLException is thrown and the
+	 * batches before stay inserted.
+	 * 
+	 * @param reader
+	 *            source, is not closed
+	 * @return number of tasks imported
+	 * @throws IOException
+	 */
+	public abstract int importTasks(Reader reader) throws IOException;
+
 	/**
 	 * Retrieve the complete list of categories form database
 	 * Will run in caller thread.
@@ -201,4 +379,19 @@ public interface ITaskDBService {
 	 *            Category object to delete
 	 */
 	public abstract void deleteCategory(Category category);
+
+	/**
+	 * Access to the in-memory task cache for its hit/miss/stale counters
+	 * 
+	 * @return task cache of the service
+	 */
+	public abstract TaskCache getTaskCache();
+
+	/**
+	 * Compare the task cache with the table and count differing entries as
+	 * stale. Will run in caller thread and read the complete table.
+	 * 
+	 * @return number of stale entries found
+	 */
+	public abstract int verifyTaskCache();
 }
\ No newline at end of file
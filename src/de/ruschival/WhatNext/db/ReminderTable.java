@@ -29,6 +29,8 @@ public final class ReminderTable {
 	public  static final String COL_DELTA = "time_delta";	
 	/**  State (int) if alarm is suspended/scheduled/dismissed  */
 	public  static final String COL_STATE = "state";
+	/**  Absolute time (ms) when this reminder fires: due - delta, NULL if the task has no due date */
+	public  static final String COL_FIRE = "fire_at";
 	
 	/**
 	 * Column indexes for Basic columns present in all arrays
@@ -48,7 +50,35 @@ public final class ReminderTable {
 				+ COL_ID    + " INTEGER primary key autoincrement, " 
 				+ COL_TID    + " INTEGER , " 
 				+ COL_DELTA   + " INTEGER , " 
-				+ COL_STATE + " INTEGER  ) ";
+				+ COL_STATE + " INTEGER , "
+				+ COL_FIRE + " INTEGER  ) ";
+
+	/**
+	 * Add fire time column to tables created before DB_VERSION 8
+	 */
+	public static final String STMT_ADD_FIRE_COLUMN = "ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+				+ COL_FIRE + " INTEGER";
+
+	/**
+	 * Compute the fire time of all reminders from the due date of their task
+	 */
+	public static final String STMT_UPDATE_ALL_FIRE_TIMES = " UPDATE " + TABLE_NAME + " set "
+				+ COL_FIRE + "= (SELECT CASE WHEN " + TaskTable.COL_DUE + " > 0 THEN "
+				+ TaskTable.COL_DUE + " - " + TABLE_NAME + "." + COL_DELTA + " END FROM "
+				+ TaskTable.TABLE_NAME + " WHERE " + TaskTable.COL_ID + " = " + TABLE_NAME + "."
+				+ COL_TID + ")";
+
+	/**
+	 * Index on fire time for the range query of pending reminders
+	 */
+	public static final String STMT_CREATE_INDEX_FIRE = " CREATE INDEX IF NOT EXISTS "
+				+ "idx_reminder_fire ON " + TABLE_NAME + "(" + COL_FIRE + ")";
+
+	/**
+	 * Index on task id (and delta for ordered retrieval of a task's reminders)
+	 */
+	public static final String STMT_CREATE_INDEX_TASK = " CREATE INDEX IF NOT EXISTS "
+				+ "idx_reminder_task ON " + TABLE_NAME + "(" + COL_TID + ", " + COL_DELTA + ")";
 
 	/** 
 	 * Statement for dropping table 
@@ -56,22 +86,50 @@ public final class ReminderTable {
 	public static final String STMT_DROP = "DROP TABLE IF EXISTS " + TABLE_NAME;
 	
 	/**
-	 * Insert a Reminder
+	 * Insert a Reminder, the fire time is computed from the due date of the task
+	 * (task_id, delta, state, delta, task_id)
 	 */
 	public static final String STMT_INSERT_REMINDER = " INSERT into " + TABLE_NAME + "(" 
-				+ COL_TID + ", "+ COL_DELTA + COL_STATE + ") values (?,?,?)";
+				+ COL_TID + ", "+ COL_DELTA + ", " + COL_STATE + ", " + COL_FIRE 
+				+ ") values (?,?,?, (SELECT CASE WHEN " + TaskTable.COL_DUE + " > 0 THEN " 
+				+ TaskTable.COL_DUE + " - ? END FROM " + TaskTable.TABLE_NAME + " WHERE " 
+				+ TaskTable.COL_ID + " = ?))";
+
+	/**
+	 * Delete all reminders of a task
+	 */
+	public static final String STMT_DELETE_REMINDERS_TASK_ID = " DELETE from " + TABLE_NAME
+				+ " WHERE " + COL_TID + "= ? ";
 
 	/**
-	 * Statement to retrieve pending events
+	 * Statement to retrieve pending events of open tasks with fire time in
+	 * (lower, upper] - range scan on the fire time index
+	 * Parameters: upper, lower
 	 */
 	public static final String STMT_GET_PENDING_REMINDERS = "SELECT " + 
 			" rem."+ReminderTable.COL_ID    + " , "+
 			" rem."+ReminderTable.COL_TID   + " , "+
-			" rem."+ReminderTable.COL_DELTA + " as delta, "+
-			" rem."+ReminderTable.COL_STATE + " as state, "+
-			" tsk."+TaskTable.COL_DUE + " as due "+
+			" rem."+ReminderTable.COL_DELTA + " , "+
+			" rem."+ReminderTable.COL_STATE + " , "+
+			" tsk."+TaskTable.COL_NAME + " , "+
+			" rem."+ReminderTable.COL_FIRE +
+			" FROM " + ReminderTable.TABLE_NAME + " rem ," + TaskTable.TABLE_NAME + " tsk "+
+			" WHERE rem."+ReminderTable.COL_FIRE + " <= ?"+
+			" AND rem."+ReminderTable.COL_FIRE + " > ?"+
+			" AND rem."+ReminderTable.COL_STATE + " < 2 "+
+			" AND tsk."+TaskTable.COL_ID + " = rem."+ReminderTable.COL_TID +
+			" AND tsk."+TaskTable.COL_PROG + " < 1.0 ";
+
+	/**
+	 * Statement to find the earliest fire time after ? of a scheduled reminder of an open task
+	 * - walks the fire time index in order and stops at the first match
+	 */
+	public static final String STMT_GET_NEXT_FIRE_TIME = "SELECT " +
+			" rem."+ReminderTable.COL_FIRE +
 			" FROM " + ReminderTable.TABLE_NAME + " rem ," + TaskTable.TABLE_NAME + " tsk "+
-			" WHERE rem.state < 2  "+
-			" AND due-delta <= ?"+
-			" AND due-delta > ?";
+			" WHERE rem."+ReminderTable.COL_FIRE + " > ?"+
+			" AND rem."+ReminderTable.COL_STATE + " < 2 "+
+			" AND tsk."+TaskTable.COL_ID + " = rem."+ReminderTable.COL_TID +
+			" AND tsk."+TaskTable.COL_PROG + " < 1.0 "+
+			" ORDER BY rem."+ReminderTable.COL_FIRE + " LIMIT 1";
 }
@@ -0,0 +1,481 @@
+/******************************************************************************
+ * \filename TaskCache.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief In-memory copy of the task table maintained by TaskDBService
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import de.ruschival.WhatNext.Category;
+import de.ruschival.WhatNext.LeastLaxityScheduler;
+import de.ruschival.WhatNext.Reminder;
+import de.ruschival.WhatNext.Task;
+
+/**
+ * @author ruschi
+ *
+ *         Authoritative in-memory store of all tasks, keyed by task id. The cache is filled
+ *         once from the database and then updated by every write of TaskDBService. As long as it
+ *         is not filled all updates are ignored, the next fill will read them from the table.
+ *         Only TaskDBService modifies the cache, other components may read the counters. The
+ *         cache never hands out or keeps a task object of a caller: reads return copies of the
+ *         whole trees the tasks belong to and put() stores a copy, thus callers may modify and
+ *         sort what they get on any thread.
+ */
+public class TaskCache {
+	/**
+	 * All tasks by id
+	 */
+	private final HashMap<Long, Task> tasks = new HashMap<Long, Task>();
+
+	/**
+	 * Flag if tasks reflects the table
+	 */
+	private boolean filled = false;
+
+	/**
+	 * Number of reads served from the cache
+	 */
+	private long hits = 0;
+
+	/**
+	 * Number of reads that had to go to the database
+	 */
+	private long misses = 0;
+
+	/**
+	 * Number of entries found to differ from the table by verify()
+	 */
+	private long stale = 0;
+
+	/**
+	 * Check if the cache has been filled
+	 *
+	 * @return true if the cache can serve reads
+	 */
+	synchronized boolean isFilled() {
+		return filled;
+	}
+
+	/**
+	 * Replace the content of the cache with the complete task set from the table
+	 *
+	 * @param allTasks
+	 *            all tasks from table
+	 */
+	synchronized void fill(Collection<Task> allTasks) {
+		tasks.clear();
+		for (Task task : allTasks) {
+			tasks.put(task.id, task);
+		}
+		filled = true;
+	}
+
+	/**
+	 * Copy of all cached tasks, counts a hit or miss. Each tree is copied once, use
+	 * getSortedIDs() or get(ids) if only the order or a window of tasks is needed.
+	 *
+	 * @return list of tasks or null if the cache is not filled
+	 */
+	synchronized ArrayList<Task> getAll() {
+		if (!filled) {
+			misses++;
+			return null;
+		}
+		hits++;
+		HashMap<Long, Task> copies = new HashMap<Long, Task>(tasks.size() * 2);
+		ArrayList<Task> all = new ArrayList<Task>(tasks.size());
+		for (Task task : tasks.values()) {
+			all.add(copyOf(task, copies));
+		}
+		return all;
+	}
+
+	/**
+	 * Copy of all cached tasks with progress < 1.0, counts a hit or miss
+	 *
+	 * @return list of open tasks or null if the cache is not filled
+	 */
+	synchronized ArrayList<Task> getOpen() {
+		if (!filled) {
+			misses++;
+			return null;
+		}
+		hits++;
+		HashMap<Long, Task> copies = new HashMap<Long, Task>(tasks.size() * 2);
+		ArrayList<Task> open = new ArrayList<Task>(tasks.size());
+		for (Task task : tasks.values()) {
+			if (task.getProgress() < 1.0f) {
+				open.add(copyOf(task, copies));
+			}
+		}
+		return open;
+	}
+
+	/**
+	 * The k most urgent cached tasks with progress < 1.0 without copying the whole set, counts
+	 * a hit or miss
+	 *
+	 * @param k
+	 *            maximum number of tasks
+	 * @return up to k open tasks in scheduling order or null if the cache is not filled
+	 */
+	synchronized ArrayList<Task> getOpenHead(int k) {
+		if (!filled) {
+			misses++;
+			return null;
+		}
+		hits++;
+		LeastLaxityScheduler.Head head = new LeastLaxityScheduler().head(k);
+		for (Task task : tasks.values()) {
+			if (task.getProgress() < 1.0f) {
+				head.offer(task);
+			}
+		}
+		HashMap<Long, Task> copies = new HashMap<Long, Task>();
+		ArrayList<Task> top = head.toList();
+		for (int i = 0; i < top.size(); i++) {
+			top.set(i, copyOf(top.get(i), copies));
+		}
+		return top;
+	}
+
+	/**
+	 * Ids of cached tasks in scheduling order without copying them, counts a hit or miss
+	 *
+	 * @param categoryIDs
+	 *            only tasks mapped to one of these categories, null or empty for all tasks
+	 * @return task ids or null if the cache is not filled
+	 */
+	synchronized ArrayList<Long> getSortedIDs(Collection<Long> categoryIDs) {
+		if (!filled) {
+			misses++;
+			return null;
+		}
+		hits++;
+		boolean filtered = categoryIDs != null && !categoryIDs.isEmpty();
+		ArrayList<Task> selected = new ArrayList<Task>(tasks.size());
+		for (Task task : tasks.values()) {
+			if (!filtered) {
+				selected.add(task);
+				continue;
+			}
+			for (Long categoryID : categoryIDs) {
+				if (task.getCategories().containsKey(categoryID)) {
+					selected.add(task);
+					break;
+				}
+			}
+		}
+		new LeastLaxityScheduler().sort(selected);
+		ArrayList<Long> ids = new ArrayList<Long>(selected.size());
+		for (Task task : selected) {
+			ids.add(task.id);
+		}
+		return ids;
+	}
+
+	/**
+	 * Copies of cached tasks by id, a tree shared by several of them is copied once. Does not
+	 * count a hit or miss
+	 *
+	 * @param ids
+	 *            task ids
+	 * @return tasks in order of ids, ids not cached are skipped
+	 */
+	synchronized ArrayList<Task> get(Collection<Long> ids) {
+		HashMap<Long, Task> copies = new HashMap<Long, Task>();
+		ArrayList<Task> found = new ArrayList<Task>(ids.size());
+		for (Long id : ids) {
+			Task task = tasks.get(id);
+			if (task != null) {
+				found.add(copyOf(task, copies));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Copy of a cached task by id, does not count a hit or miss
+	 *
+	 * @param id
+	 *            task id
+	 * @return task or null if not cached
+	 */
+	synchronized Task get(long id) {
+		Task task = tasks.get(id);
+		return task == null ? null : copyOf(task, new HashMap<Long, Task>());
+	}
+
+	/**
+	 * Categories of a cached task without copying it, does not count a hit or miss
+	 *
+	 * @param id
+	 *            task id
+	 * @return copy of the category ids or null if not cached
+	 */
+	synchronized ArrayList<Long> getCategoryIDs(long id) {
+		Task task = tasks.get(id);
+		return task == null ? null : new ArrayList<Long>(task.getCategories().keySet());
+	}
+
+	/**
+	 * Cached task and all its sub-tasks, counts a hit or miss
+	 *
+	 * @param id
+	 *            id of root task
+	 * @return root task followed by sub-tasks in breadth-first order, empty if not cached or
+	 *         null if the cache is not filled
+	 */
+	synchronized ArrayList<Task> getSubtree(long id) {
+		if (!filled) {
+			misses++;
+			return null;
+		}
+		hits++;
+		ArrayList<Task> subtree = new ArrayList<Task>();
+		Task root = tasks.get(id);
+		if (root != null) {
+			subtree.add(copyOf(root, new HashMap<Long, Task>()));
+			/* subtree grows while it is traversed */
+			for (int i = 0; i < subtree.size(); i++) {
+				subtree.addAll(subtree.get(i).getSubtasks());
+			}
+		}
+		return subtree;
+	}
+
+	/**
+	 * Add or replace a task after it has been written. A copy of task is stored, a replaced task
+	 * hands its sub-tasks to the copy, the copy is linked to the cached parent with the id of the
+	 * parent of task.
+	 *
+	 * @param task
+	 *            task with valid id
+	 */
+	synchronized void put(Task task) {
+		if (filled && task.id != null) {
+			Task stored = task.detachedCopy();
+			Task old = tasks.put(stored.id, stored);
+			if (old != null) {
+				for (Task child : new ArrayList<Task>(old.getSubtasks())) {
+					stored.addSubtask(child);
+				}
+				if (old.getParent() != null) {
+					old.getParent().removeSubtask(old);
+				}
+			}
+			Task parent = task.getParent();
+			if (parent != null && parent.id != null) {
+				Task cachedParent = tasks.get(parent.id);
+				if (cachedParent != null) {
+					cachedParent.addSubtask(stored);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply a write of state columns, e.g. by start or stop, to the cached task. Values that
+	 * were not written are null.
+	 *
+	 * @param id
+	 *            task id
+	 * @param progress
+	 * @param actual
+	 * @param resumed
+	 * @param suspended
+	 */
+	synchronized void putState(long id, Float progress, Long actual, Long resumed,
+			Boolean suspended) {
+		Task task = tasks.get(id);
+		if (task == null) {
+			return;
+		}
+		if (progress != null) {
+			task.setProgress(progress);
+		}
+		if (actual != null) {
+			task.setActual(actual);
+		}
+		if (resumed != null) {
+			task.resumed = resumed;
+		}
+		if (suspended != null) {
+			task.suspend(suspended);
+		}
+	}
+
+	/**
+	 * Remove a deleted task, its sub-tasks become top level tasks
+	 *
+	 * @param id
+	 *            task id
+	 */
+	synchronized void remove(long id) {
+		Task removed = tasks.remove(id);
+		if (removed != null) {
+			if (removed.getParent() != null) {
+				removed.getParent().removeSubtask(removed);
+			}
+			for (Task child : new ArrayList<Task>(removed.getSubtasks())) {
+				removed.removeSubtask(child);
+			}
+		}
+	}
+
+	/**
+	 * Remove a deleted category from all cached tasks
+	 *
+	 * @param category
+	 */
+	synchronized void removeCategory(Category category) {
+		for (Task task : tasks.values()) {
+			task.getCategories().remove(category.id);
+		}
+	}
+
+	/**
+	 * Attach a newly inserted reminder to its cached task
+	 *
+	 * @param reminder
+	 *            reminder with valid task id
+	 */
+	synchronized void addReminder(Reminder reminder) {
+		Task task = tasks.get(reminder.getTaskId());
+		if (task == null) {
+			return;
+		}
+		for (Reminder cached : task.getReminders()) {
+			if (cached == reminder
+					|| (cached.getId() != null && cached.getId().equals(reminder.getId()))) {
+				return;
+			}
+		}
+		task.getReminders().add(new Reminder(reminder));
+	}
+
+	/**
+	 * Detach a deleted reminder from its cached task
+	 *
+	 * @param reminderID
+	 * @return the removed reminder or null if not cached
+	 */
+	synchronized Reminder removeReminder(long reminderID) {
+		for (Task task : tasks.values()) {
+			Iterator<Reminder> it = task.getReminders().iterator();
+			while (it.hasNext()) {
+				Reminder reminder = it.next();
+				Long id = reminder.getId();
+				if (id != null && id.longValue() == reminderID) {
+					it.remove();
+					return reminder;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Compare the cache with a fresh read of the table. Entries that are missing, superfluous
+	 * or differ in progress, actual, resumed, wcet, due or suspended flag are counted as stale.
+	 *
+	 * @param tableTasks
+	 *            all tasks as read from the table
+	 * @return number of stale entries found
+	 */
+	synchronized int verify(Collection<Task> tableTasks) {
+		if (!filled) {
+			return 0;
+		}
+		int found = 0;
+		HashSet<Long> tableIDs = new HashSet<Long>(tableTasks.size() * 2);
+		for (Task dbTask : tableTasks) {
+			tableIDs.add(dbTask.id);
+			Task cached = tasks.get(dbTask.id);
+			if (cached == null) {
+				found++;
+			} else if (cached.getProgress() != dbTask.getProgress()
+					|| cached.getActual() != dbTask.getActual()
+					|| cached.resumed != dbTask.resumed || cached.getWcet() != dbTask.getWcet()
+					|| cached.isSuspended() != dbTask.isSuspended()
+					|| cached.getDueMs() != dbTask.getDueMs()) {
+				found++;
+			}
+		}
+		/* cached tasks that are no longer in the table */
+		for (Long id : tasks.keySet()) {
+			if (!tableIDs.contains(id)) {
+				found++;
+			}
+		}
+		stale += found;
+		return found;
+	}
+
+	/**
+	 * Copy of a cached task, linked into copies of its whole tree. The tree is copied once per
+	 * read, further tasks of the same tree are taken from copies.
+	 *
+	 * @param task
+	 *            cached task
+	 * @param copies
+	 *            copies made during this read by id
+	 * @return copy of task
+	 */
+	private static Task copyOf(Task task, HashMap<Long, Task> copies) {
+		Task copy = copies.get(task.id);
+		if (copy != null) {
+			return copy;
+		}
+		Task root = task;
+		while (root.getParent() != null) {
+			root = root.getParent();
+		}
+		ArrayList<Task> level = new ArrayList<Task>();
+		level.add(root);
+		copies.put(root.id, root.detachedCopy());
+		/* level grows while it is traversed */
+		for (int i = 0; i < level.size(); i++) {
+			Task original = level.get(i);
+			Task parentCopy = copies.get(original.id);
+			for (Task child : original.getSubtasks()) {
+				Task childCopy = child.detachedCopy();
+				copies.put(child.id, childCopy);
+				parentCopy.addSubtask(childCopy);
+				level.add(child);
+			}
+		}
+		return copies.get(task.id);
+	}
+
+	/**
+	 * @return number of reads served from memory
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return number of reads that went to the database
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return accumulated number of stale entries found by verification
+	 */
+	public synchronized long getStaleCount() {
+		return stale;
+	}
+}
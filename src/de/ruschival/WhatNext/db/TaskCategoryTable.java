@@ -33,8 +33,24 @@ public interface TaskCategoryTable {
 	public static final String STMT_CREATE = " CREATE TABLE " + TABLE_NAME + "(" + 
 				COL_TID + " INTEGER, " +
 				COL_CID + " INTEGER)";
-	/** insert statement */
-	public static final String STMT_INSERT_MAPPING = " INSERT into " + TABLE_NAME + "(" 
+	/**
+	 * Index on (task, category) - covers lookup and deletion by task id and
+	 * prevents duplicate mappings
+	 */
+	public static final String STMT_CREATE_INDEX_TASK = " CREATE UNIQUE INDEX IF NOT EXISTS "
+				+ "idx_taskcategory_task ON " + TABLE_NAME + "(" + COL_TID + ", " + COL_CID + ")";
+
+	/** Index on (category, task) - covers deletion by category id */
+	public static final String STMT_CREATE_INDEX_CATEGORY = " CREATE INDEX IF NOT EXISTS "
+				+ "idx_taskcategory_category ON " + TABLE_NAME + "(" + COL_CID + ", " + COL_TID + ")";
+
+	/** Remove duplicate mappings before the unique index is created */
+	public static final String STMT_DELETE_DUPLICATES = " DELETE from " + TABLE_NAME
+				+ " WHERE rowid NOT IN (SELECT MIN(rowid) FROM " + TABLE_NAME + " GROUP BY "
+				+ COL_TID + ", " + COL_CID + ")";
+
+	/** insert statement, existing mappings are ignored */
+	public static final String STMT_INSERT_MAPPING = " INSERT OR IGNORE into " + TABLE_NAME + "(" 
 				+ COL_TID + ", "+ COL_CID + ") values (?,?)";
 	/** delete statement for mapping by taskID */
 	public static final String STMT_DELETE_MAPPING_TASK_ID = " DELETE from " + TABLE_NAME  
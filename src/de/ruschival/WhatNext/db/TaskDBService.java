@@ -13,8 +13,16 @@
  */
 package de.ruschival.WhatNext.db;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import android.app.Service;
 import android.content.ContentValues;
 import android.content.Context;
@@ -25,8 +33,10 @@ import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import de.ruschival.WhatNext.Category;
 import de.ruschival.WhatNext.LeastLaxityScheduler;
 import de.ruschival.WhatNext.ListRunnable;
@@ -34,6 +44,9 @@ import de.ruschival.WhatNext.R;
 import de.ruschival.WhatNext.Reminder;
 import de.ruschival.WhatNext.Task;
 import de.ruschival.WhatNext.WidgetDataService;
+import de.ruschival.WhatNext.RFC554.VcalParser;
+import de.ruschival.WhatNext.RFC554.VcalWriter;
+import de.ruschival.WhatNext.reminder.ReminderService;
 
 /**
  * @author ruschi Proxy-object for Database accesses
@@ -53,6 +66,11 @@ public class TaskDBService extends Service {
             return _getTaskByID(id);
         }
 
+        @Override
+        public ArrayList<Task> getSubtree(long id) {
+            return _getSubtree(id);
+        }
+
         @Override
         public void deleteTask(Task task) {
             if (task != null){
@@ -74,6 +92,27 @@ public class TaskDBService extends Service {
             }
         }
 
+        @Override
+        public void insertTasks(List<Task> tasks) {
+            if (tasks != null && !tasks.isEmpty()){
+                _insertTasks(tasks);
+            }
+        }
+
+        @Override
+        public void updateTasks(List<Task> tasks) {
+            if (tasks != null && !tasks.isEmpty()){
+                _updateTasks(tasks);
+            }
+        }
+
+        @Override
+        public void deleteTasks(List<Task> tasks) {
+            if (tasks != null && !tasks.isEmpty()){
+                _deleteTasks(tasks);
+            }
+        }
+
         @Override
         public boolean startTask(Task task) {
             if (task != null){
@@ -113,6 +152,46 @@ public class TaskDBService extends Service {
             _getTaskListMT(receiver, callback);
         }
 
+        @Override
+        public void getTaskIDList(Handler receiver, ListRunnable<Long> callback) {
+            _getTaskIDListMT(receiver, callback);
+        }
+
+        @Override
+        public ArrayList<Long> getTaskIDs(List<Category> filter) {
+            return _getTaskIDs(filter);
+        }
+
+        @Override
+        public ArrayList<Task> getTasksByID(List<Long> ids) {
+            return _getTasksByID(ids);
+        }
+
+        @Override
+        public void getTasksByID(List<Long> ids, Handler receiver, ListRunnable<Task> callback) {
+            _getTasksByIDMT(ids, receiver, callback);
+        }
+
+        @Override
+        public HashMap<Long, BitSet> getCategoryIndex(List<Long> ids) {
+            return _getCategoryIndex(ids);
+        }
+
+        @Override
+        public int exportTasks(Writer writer) throws IOException {
+            return _exportTasks(writer);
+        }
+
+        @Override
+        public long exportTasksSince(Writer writer, long since) throws IOException {
+            return _exportTasksSince(writer, since);
+        }
+
+        @Override
+        public int importTasks(Reader reader) throws IOException {
+            return _importTasks(reader);
+        }
+
         @Override
         public ArrayList<Category> getCategories() {
             return _getCategories();
@@ -149,8 +228,17 @@ public class TaskDBService extends Service {
         }
 
         @Override
-        public long insertReminder(Reminder reminder) {
-            return _insertReminder(reminder);
+        public long insertReminder(final Reminder reminder) {
+            writeQueue.postAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    _insertReminder(reminder);
+                    touchTask(reminder.getTaskId());
+                }
+            });
+            taskCache.addReminder(reminder);
+            updateReminders();
+            return reminder.getId();
         }
 
         @Override
@@ -158,11 +246,36 @@ public class TaskDBService extends Service {
             return _getPendingReminders(delta);
         }
 
+        @Override
+        public ArrayList<Reminder> getPendingReminders(long after, long until) {
+            return _getPendingReminders(after, until);
+        }
+
+        @Override
+        public long getNextReminderTime(long after) {
+            return _getNextReminderTime(after);
+        }
+
         @Override
         public ArrayList<Task> getTaskOverview() {
             return _getTaskOverview();
         }
 
+        @Override
+        public ArrayList<Task> getTopTasks(int k) {
+            return _getTopTasks(k);
+        }
+
+        @Override
+        public TaskCache getTaskCache() {
+            return taskCache;
+        }
+
+        @Override
+        public int verifyTaskCache() {
+            return taskCache.verify(_loadTasks());
+        }
+
     }
 
     /**
@@ -178,7 +291,7 @@ public class TaskDBService extends Service {
         /**
          * Database information (version)
          */
-        public static final int DB_VERSION = 6;
+        public static final int DB_VERSION = 11;
 
         /**
          * Default Constructor
@@ -193,6 +306,12 @@ public class TaskDBService extends Service {
             db.execSQL(CategoryTable.STMT_CREATE);
             db.execSQL(TaskCategoryTable.STMT_CREATE);
             db.execSQL(ReminderTable.STMT_CREATE);
+            createIndexes(db);
+            db.execSQL(ReminderTable.STMT_CREATE_INDEX_FIRE);
+            db.execSQL(TaskTable.STMT_CREATE_INDEX_LAX);
+            db.execSQL(TaskTable.STMT_CREATE_INDEX_LAST);
+            db.execSQL(DeletedTaskTable.STMT_CREATE);
+            db.execSQL(DeletedTaskTable.STMT_CREATE_INDEX_DEL);
 
             String categories[] = getApplicationContext().getResources().getStringArray(
                     R.array.DefaultCategories);
@@ -205,26 +324,50 @@ public class TaskDBService extends Service {
         }
 
         /**
-         * Will be executed on schema update and unfortunately destroys data TODO: write
-         * import/export of existing data!
+         * Will be executed on schema update, migrates step by step from oldVersion and keeps the
+         * existing data
          */
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion < 6){ // TODO: CHECK for future releases
+            if (oldVersion < 6){
                 db.execSQL("ALTER TABLE " + TaskTable.TABLE_NAME + " ADD COLUMN "
                         + TaskTable.COL_PARENT);
-            } else{
-                /** Drop old table */
-                db.execSQL(TaskTable.STMT_DROP);
-                db.execSQL(CategoryTable.STMT_DROP);
-                db.execSQL(TaskCategoryTable.STMT_DROP);
-                db.execSQL(ReminderTable.STMT_DROP);
-                /** Initialize new Table */
-                db.execSQL(TaskTable.STMT_CREATE);
-                db.execSQL(CategoryTable.STMT_CREATE);
-                db.execSQL(TaskCategoryTable.STMT_CREATE);
-                db.execSQL(ReminderTable.STMT_CREATE);
+            }
+            if (oldVersion < 7){
+                /* unique mapping index fails on duplicates */
+                db.execSQL(TaskCategoryTable.STMT_DELETE_DUPLICATES);
+                createIndexes(db);
+            }
+            if (oldVersion < 8){
+                db.execSQL(ReminderTable.STMT_ADD_FIRE_COLUMN);
+                db.execSQL(ReminderTable.STMT_UPDATE_ALL_FIRE_TIMES);
+                db.execSQL(ReminderTable.STMT_CREATE_INDEX_FIRE);
+            }
+            if (oldVersion < 9){
+                db.execSQL(TaskTable.STMT_CREATE_INDEX_PARENT);
+            }
+            if (oldVersion < 10){
+                db.execSQL(TaskTable.STMT_ADD_LAX_COLUMN);
+                db.execSQL(TaskTable.STMT_UPDATE_ALL_LAX);
+                db.execSQL(TaskTable.STMT_CREATE_INDEX_LAX);
+            }
+            if (oldVersion < 11){
+                db.execSQL(TaskTable.STMT_CREATE_INDEX_LAST);
+                db.execSQL(DeletedTaskTable.STMT_CREATE);
+                db.execSQL(DeletedTaskTable.STMT_CREATE_INDEX_DEL);
             }
         }
+
+        /**
+         * Create the indexes for lookups by task id, category id, progress, due date and parent
+         */
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL(TaskTable.STMT_CREATE_INDEX_PROGRESS);
+            db.execSQL(TaskTable.STMT_CREATE_INDEX_DUE);
+            db.execSQL(TaskTable.STMT_CREATE_INDEX_PARENT);
+            db.execSQL(TaskCategoryTable.STMT_CREATE_INDEX_TASK);
+            db.execSQL(TaskCategoryTable.STMT_CREATE_INDEX_CATEGORY);
+            db.execSQL(ReminderTable.STMT_CREATE_INDEX_TASK);
+        }
     }
 
     /**
@@ -238,11 +381,76 @@ public class TaskDBService extends Service {
     private SQLiteDatabase db;
 
     /**
-     * cached version of all Categories
+     * cached version of all Categories, replaced as a whole on changes. Readers need no lock,
+     * writers hold catLock
      */
-    private ArrayList<Category> categories;
+    private volatile CategorySnapshot categories = CategorySnapshot.EMPTY;
     private Object catLock = new Object();
 
+    /**
+     * Flag if categories have been read from the table
+     */
+    private volatile boolean categoriesLoaded = false;
+
+    /**
+     * In-memory copy of the task table, serves task list, overview and widget
+     */
+    private final TaskCache taskCache = new TaskCache();
+
+    /**
+     * Maximum number of ids looked up by "IN (...)" instead of a table scan
+     */
+    private static final int IN_LIST_LIMIT = 500;
+
+    /**
+     * Number of imported tasks inserted in one transaction
+     */
+    private static final int IMPORT_BATCH_SIZE = 200;
+
+    /**
+     * Single writer thread, all asynchronous database jobs are executed here in order
+     */
+    private WriteQueue writeQueue;
+
+    /**
+     * Delay in ms after the last change before the widgets and reminders are updated
+     */
+    public static final long WIDGET_UPDATE_DELAY = 500;
+
+    /**
+     * Handler of the main thread to delay widget and reminder updates
+     */
+    private Handler widgetHandler;
+
+    /**
+     * Start WidgetDataService, posted to widgetHandler
+     */
+    private final Runnable widgetUpdate = new Runnable() {
+        @Override
+        public void run() {
+            Intent intent = new Intent(TaskDBService.this, WidgetDataService.class);
+            startService(intent);
+        }
+    };
+
+    /**
+     * Let ReminderService re-arm its alarm, posted to widgetHandler
+     */
+    private final Runnable reminderUpdate = new Runnable() {
+        @Override
+        public void run() {
+            Intent intent = new Intent(TaskDBService.this, ReminderService.class);
+            intent.putExtra(ReminderService.EXTRA_DATA_CHANGED, true);
+            startService(intent);
+        }
+    };
+
+    /**
+     * Thread for asynchronous reads served by the task cache, they neither wait behind queued
+     * writes nor for the database connection
+     */
+    private WriteQueue readQueue;
+
     /**
      * Cursor of last getTasks()
      */
@@ -258,6 +466,26 @@ public class TaskDBService extends Service {
      */
     private SQLiteStatement stmtTaskUpdate;
 
+    /**
+     * Precompiled delete statement for a task record
+     */
+    private SQLiteStatement stmtDeleteTask;
+
+    /**
+     * Precompiled insert statement for tombstones of deleted tasks
+     */
+    private SQLiteStatement stmtInsertTombstone;
+
+    /**
+     * Precompiled insert statement for reminders
+     */
+    private SQLiteStatement stmtReminderInsert;
+
+    /**
+     * Precompiled statement for deletion of all reminders of a task
+     */
+    private SQLiteStatement stmtDeleteReminders;
+
     /**
      * Precompiled insert statement for category
      */
@@ -268,6 +496,17 @@ public class TaskDBService extends Service {
      */
     private SQLiteStatement stmtInsertMapping;
 
+    /**
+     * Precompiled statement for the modification time of a single task
+     */
+    private SQLiteStatement stmtTouchTask;
+
+    /**
+     * Last value of nextModificationTime(), 0 until read from the table. Only used in the writer
+     * thread
+     */
+    private long lastModification = 0;
+
     /**
      * Precompiled statement for deletion of mapping task<-> Category (by task id)
      */
@@ -283,11 +522,21 @@ public class TaskDBService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        // allTasks = new ArrayList<Task>(10);
-        categories = new ArrayList<Category>(5);
+        writeQueue = new WriteQueue();
+        readQueue = new WriteQueue("TaskDBReader");
+        widgetHandler = new Handler(Looper.getMainLooper());
         /** open database connection */
         getDBconnection();
         precacheDataMT();
+        pruneTombstonesMT();
+    }
+
+    @Override
+    public void onDestroy() {
+        /* finish waiting writes, the connection is closed by the system */
+        readQueue.shutdown();
+        writeQueue.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -328,20 +577,71 @@ public class TaskDBService extends Service {
                 new String[] { TaskCategoryTable.COL_CID }, TaskCategoryTable.COL_TID + "='"
                         + task.id + "'", null, null, null, TaskCategoryTable.COL_CID);
         /** Add category if it exists */
+        CategorySnapshot snapshot = categories;
         while (categoryCursor.moveToNext()){
-            long catid = categoryCursor.getLong(0);
-            synchronized (catLock){
-                for (Category category : categories){
-                    if (category.id == catid){
-                        task.getCategories().put(category.id, category);
-                        break;
-                    }
-                }
+            Category category = snapshot.get(categoryCursor.getLong(0));
+            if (category != null){
+                task.getCategories().put(category.id, category);
+            }
+        }
+        categoryCursor.close();
+    }
+
+    /**
+     * Batched variant of getCategoriesForTask(): read the mappings of all tasks in taskMap in one
+     * query and attach the categories to the tasks. Mappings of other tasks are skipped.
+     * 
+     * @param taskMap
+     *            tasks to complete, key is task.id
+     */
+    private void getCategoriesForTasks(HashMap<Long, Task> taskMap) {
+        if (taskMap.isEmpty()){
+            return;
+        }
+        Cursor categoryCursor = db.query(TaskCategoryTable.TABLE_NAME, new String[] {
+                TaskCategoryTable.COL_TID, TaskCategoryTable.COL_CID },
+                selectTaskIDs(TaskCategoryTable.COL_TID, taskMap), null, null, null,
+                TaskCategoryTable.COL_TID);
+        CategorySnapshot snapshot = categories;
+        while (categoryCursor.moveToNext()){
+            Task task = taskMap.get(categoryCursor.getLong(0));
+            if (task == null){
+                continue;
+            }
+            Category category = snapshot.get(categoryCursor.getLong(1));
+            if (category != null){
+                task.getCategories().put(category.id, category);
             }
         }
         categoryCursor.close();
     }
 
+    /**
+     * Batched variant of _getReminders(): read the reminders of all tasks in taskMap in one query
+     * and hand them to the tasks. Reminders of other tasks are skipped.
+     * 
+     * @param taskMap
+     *            tasks to complete, key is task.id
+     */
+    private void getRemindersForTasks(HashMap<Long, Task> taskMap) {
+        if (taskMap.isEmpty()){
+            return;
+        }
+        Cursor cur = db.query(ReminderTable.TABLE_NAME, ReminderTable.ALL_COLUMNS,
+                selectTaskIDs(ReminderTable.COL_TID, taskMap), null, null, null,
+                ReminderTable.COL_TID + ", " + ReminderTable.COL_DELTA, null);
+        while (cur.moveToNext()){
+            Task task = taskMap.get(cur.getLong(ReminderTable.IDX_TID));
+            if (task != null){
+                task.getReminders().add(
+                        new Reminder(cur.getLong(ReminderTable.IDX_ID), cur
+                                .getLong(ReminderTable.IDX_TID), cur.getInt(ReminderTable.IDX_DELTA),
+                                cur.getInt(ReminderTable.IDX_STATE)));
+            }
+        }
+        cur.close();
+    }
+
     /**
      * Delete task entries from category table
      * 
@@ -378,28 +678,124 @@ public class TaskDBService extends Service {
     }
 
     /**
-     * Create a new reminder record in the database
+     * Create a new reminder record in the database. Runs in the writer thread.
      * 
      * @param reminder
      * @return
      */
     private long _insertReminder(Reminder reminder) {
-        ContentValues content = new ContentValues();
-        content.put(ReminderTable.COL_TID, reminder.getTaskId());
-        content.put(ReminderTable.COL_DELTA, reminder.getDelta());
-        content.put(ReminderTable.COL_STATE, reminder.getState());
-        long id = db.insert(ReminderTable.TABLE_NAME, null, content);
+        if (stmtReminderInsert == null){
+            stmtReminderInsert = db.compileStatement(ReminderTable.STMT_INSERT_REMINDER);
+        }
+        stmtReminderInsert.bindLong(1, reminder.getTaskId());
+        stmtReminderInsert.bindLong(2, reminder.getDelta());
+        stmtReminderInsert.bindLong(3, reminder.getState());
+        /* fire time = due - delta of the task */
+        stmtReminderInsert.bindLong(4, reminder.getDelta());
+        stmtReminderInsert.bindLong(5, reminder.getTaskId());
+        long id = stmtReminderInsert.executeInsert();
         reminder.setId(id);
         return id;
     }
 
     /**
-     * Delete the given reminder from table
+     * Delete all reminders of a task. Runs in the writer thread.
+     * 
+     * @param taskid
+     */
+    private void deleteTaskReminders(long taskid) {
+        if (stmtDeleteReminders == null){
+            stmtDeleteReminders = db.compileStatement(ReminderTable.STMT_DELETE_REMINDERS_TASK_ID);
+        }
+        stmtDeleteReminders.bindLong(1, taskid);
+        stmtDeleteReminders.execute();
+    }
+
+    /**
+     * Modification time for lastmod, created and tombstones in ms since epoch, never before the
+     * previous one even if the clock is set back. Runs in the writer thread.
+     * 
+     * @return time in ms
+     */
+    private long nextModificationTime() {
+        if (lastModification == 0){
+            /* continue after the time stamps of the last run */
+            Cursor cur = db.rawQuery(DeletedTaskTable.STMT_GET_LATEST_MODIFICATION, null);
+            if (cur.moveToFirst()){
+                lastModification = cur.getLong(0);
+            }
+            cur.close();
+        }
+        lastModification = Math.max(lastModification, System.currentTimeMillis());
+        return lastModification;
+    }
+
+    /**
+     * Set the modification time of a task whose dependent rows changed. Runs in the writer
+     * thread.
+     * 
+     * @param taskid
+     */
+    private void touchTask(long taskid) {
+        if (stmtTouchTask == null){
+            stmtTouchTask = db.compileStatement(TaskTable.STMT_TOUCH_TASK);
+        }
+        stmtTouchTask.bindLong(1, nextModificationTime());
+        stmtTouchTask.bindLong(2, taskid);
+        stmtTouchTask.execute();
+    }
+
+    /**
+     * Set the modification time of all tasks mapped to a category. Runs in the writer thread.
+     * 
+     * @param categoryID
+     */
+    private void touchTasksOfCategory(long categoryID) {
+        SQLiteStatement stmt = db.compileStatement(TaskTable.STMT_TOUCH_TASKS_CATEGORY);
+        stmt.bindLong(1, nextModificationTime());
+        stmt.bindLong(2, categoryID);
+        stmt.execute();
+        stmt.close();
+    }
+
+    /**
+     * Delete the given reminder from table and set the modification time of its task. The delete
+     * runs in the writer thread after a waiting update of its task, which re-inserts the
+     * reminders of the task with new ids, thus the row is also matched by task and delta.
      * 
      * @param reminderID
      */
-    private void _deleteReminder(long reminderID) {
-        db.delete(ReminderTable.TABLE_NAME, ReminderTable.COL_ID + " = '" + reminderID + "'", null);
+    private void _deleteReminder(final long reminderID) {
+        final Reminder removed = taskCache.removeReminder(reminderID);
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                String where = ReminderTable.COL_ID + " = '" + reminderID + "'";
+                Long taskID = null;
+                if (removed != null){
+                    taskID = removed.getTaskId();
+                    where += " OR (" + ReminderTable.COL_TID + " = '" + removed.getTaskId()
+                            + "' AND " + ReminderTable.COL_DELTA + " = '" + removed.getDelta()
+                            + "')";
+                } else{
+                    Cursor cur = db.query(ReminderTable.TABLE_NAME,
+                            new String[] { ReminderTable.COL_TID }, where, null, null, null, null);
+                    if (cur.moveToFirst()){
+                        taskID = cur.getLong(0);
+                    }
+                    cur.close();
+                }
+                if (db.delete(ReminderTable.TABLE_NAME, where, null) > 0 && taskID != null){
+                    touchTask(taskID);
+                }
+                updateReminders();
+            }
+        };
+        if (removed != null && removed.getTaskId() != null){
+            writeQueue.postForTask(removed.getTaskId(), job);
+        } else{
+            writeQueue.post(job);
+        }
     }
 
     /**
@@ -410,26 +806,30 @@ public class TaskDBService extends Service {
      * @return
      */
     public ArrayList<Reminder> _getPendingReminders(int delta) {
-        ArrayList<Reminder> reminders = new ArrayList<Reminder>();
         long now = System.currentTimeMillis();
-        long lower = now - delta;
-
-        final String query = String.format("SELECT " + " rem." + ReminderTable.COL_ID + " , "
-                + " rem." + ReminderTable.COL_TID + " , " + " rem." + ReminderTable.COL_DELTA
-                + " as delta, " + " rem." + ReminderTable.COL_STATE + " as state, " + " tsk."
-                + TaskTable.COL_NAME + " , " + " tsk." + TaskTable.COL_PROG + " as prog, "
-                + " tsk." + TaskTable.COL_DUE + " as due " + " FROM " + ReminderTable.TABLE_NAME
-                + " rem ," + TaskTable.TABLE_NAME + " tsk " + " WHERE rem.state < 2  "
-                + " AND prog < 1.0 " + " AND tsk." + TaskTable.COL_ID + "= rem."
-                + ReminderTable.COL_TID + " AND due-delta <= %d" + " AND due-delta > %d ", now,
-                lower);
+        return _getPendingReminders(now - delta, now);
+    }
 
-        Cursor cur = db.rawQuery(query, null);
+    /**
+     * Retrieve Reminders of open tasks with fire time in (after, until]
+     * 
+     * @param after
+     *            exclusive lower bound (ms)
+     * @param until
+     *            inclusive upper bound (ms)
+     * @return
+     */
+    private ArrayList<Reminder> _getPendingReminders(long after, long until) {
+        ArrayList<Reminder> reminders = new ArrayList<Reminder>();
+
+        Cursor cur = db.rawQuery(ReminderTable.STMT_GET_PENDING_REMINDERS, new String[] {
+                Long.toString(until), Long.toString(after) });
 
         while (cur.moveToNext()){
             Reminder rem = new Reminder(cur.getLong(0), cur.getLong(1), cur.getInt(2),
                     cur.getInt(3));
             rem.taskName = cur.getString(4);
+            rem.fireAt = cur.getLong(5);
 
             reminders.add(rem);
         }
@@ -437,6 +837,24 @@ public class TaskDBService extends Service {
         return reminders;
     }
 
+    /**
+     * Find the earliest fire time of a scheduled reminder of an open task after the given time
+     * 
+     * @param after
+     *            time in ms
+     * @return fire time in ms or 0 if none
+     */
+    private long _getNextReminderTime(long after) {
+        long next = 0L;
+        Cursor cur = db.rawQuery(ReminderTable.STMT_GET_NEXT_FIRE_TIME,
+                new String[] { Long.toString(after) });
+        if (cur.moveToFirst()){
+            next = cur.getLong(0);
+        }
+        cur.close();
+        return next;
+    }
+
     /**
      * Allows access to database for query (and manipulation if desired)
      * 
@@ -453,90 +871,208 @@ public class TaskDBService extends Service {
             }
             if (db == null){
                 db = dbInstance.getWritableDatabase();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB){
+                    /*
+                     * queries of other threads may then run on a separate connection while
+                     * the writer holds a transaction. Below API 11 they share the only
+                     * connection and wait for the transaction, list reads are served by the
+                     * task cache and do not touch the connection at all.
+                     */
+                    db.enableWriteAheadLogging();
+                }
             }
         }
         return db;
     }
 
     /**
-     * Build an ArrayList of all task in Table Select EDIT_COLUMNS from TaskTable does not spawn a
-     * new Thread
+     * Return all tasks from the task cache, the cache is filled from the table if necessary. Does
+     * not spawn a new Thread
      * 
-     * @return ArrayList<Task> - all tasks from table (sorted by least Laxity)
+     * @return ArrayList<Task> - all tasks (sorted by least Laxity)
      */
     private ArrayList<Task> _getTasks() {
+        ArrayList<Task> allTasks = taskCache.getAll();
+        if (allTasks == null){
+            allTasks = fillTaskCache();
+        }
+        new LeastLaxityScheduler().sort(allTasks);
+        return allTasks;
+    }
+
+    /**
+     * Fill the task cache from the table unless another thread already did so
+     * 
+     * @return unsorted copy of all cached tasks
+     */
+    private ArrayList<Task> fillTaskCache() {
+        synchronized (taskCache){
+            if (!taskCache.isFilled()){
+                taskCache.fill(_loadTasks());
+            }
+            return taskCache.getAll();
+        }
+    }
+
+    /**
+     * Build an ArrayList of all task in Table Select EDIT_COLUMNS from TaskTable does not spawn a
+     * new Thread. Categories and reminders are read with one query each for the whole task set.
+     * 
+     * @return ArrayList<Task> - all tasks from table (unsorted)
+     */
+    private ArrayList<Task> _loadTasks() {
         ArrayList<Task> allTasks = new ArrayList<Task>(5);
+        /* parent id of allTasks.get(i), null for top level tasks */
+        ArrayList<Long> parentIDs = new ArrayList<Long>(5);
+
+        HashMap<Long, Task> taskMap = new HashMap<Long, Task>();
 
         cur_Taskset = db.query(TaskTable.TABLE_NAME, TaskTable.ALL_COLUMNS, null, null, null, null,
                 null);
         while (cur_Taskset.moveToNext()){
             Task task = buildTaskFromCursorAtPosition(cur_Taskset);
-            /** retrieve categories for this task */
-            getCategoriesForTask(task);
-            /** Retrieve Reminders */
-            task.setReminders(_getReminders(task.id));
+            taskMap.put(task.id, task);
             allTasks.add(task);
+            parentIDs.add(getParentID(cur_Taskset));
         }
         cur_Taskset.close();
-
-        Collections.sort(allTasks, new LeastLaxityScheduler());
+        /** link hierarchy in one pass, parents are looked up by id */
+        for (int i = 0; i < allTasks.size(); i++){
+            Long parentID = parentIDs.get(i);
+            if (parentID != null){
+                Task parent = taskMap.get(parentID);
+                if (parent != null){
+                    parent.addSubtask(allTasks.get(i));
+                }
+            }
+        }
+        /** retrieve categories and reminders for all tasks at once */
+        getCategoriesForTasks(taskMap);
+        getRemindersForTasks(taskMap);
         return allTasks;
     }
 
     /**
-     * Build an ArrayList of all task in Table Select EDIT_COLUMNS from TaskTable does not spawn a
-     * new Thread
+     * Read parent column of task cursor
      * 
-     * @return ArrayList<Task> - all tasks from table (sorted by least Laxity)
+     * @param cur
+     *            "Select ALL_COLUMNS from TaskTable"
+     * @return parent id or null for top level tasks
      */
-    private ArrayList<Task> _getTaskOverview() {
-        ArrayList<Task> allTasks = new ArrayList<Task>(5);
-        String selection = TaskTable.COL_PROG + " < '1.0' ";
-
-        Cursor cur = db.query(TaskTable.TABLE_NAME, TaskTable.ALL_COLUMNS, selection, null, null,
-                null, null);
-        while (cur.moveToNext()){
-            Task task = buildTaskFromCursorAtPosition(cur);
-            allTasks.add(task);
+    private Long getParentID(Cursor cur) {
+        if (cur.isNull(TaskTable.IDX_PARENT)){
+            return null;
         }
-        cur.close();
-
-        Collections.sort(allTasks, new LeastLaxityScheduler());
-        return allTasks;
+        return cur.getLong(TaskTable.IDX_PARENT);
     }
 
     /**
-     * Update a task<-> CategoryMapping by deleting and inserting new values
+     * Retrieve a task with all its sub-tasks. From cache if filled, else from database reading
+     * one level of the tree per query
      * 
-     * @param task
+     * @param id
+     *            id of root task
+     * @return root followed by sub-tasks in breadth-first order
      */
-    private void insertTaskCategoryMapping(Task task) {
-        /** insert Categories */
-        if (stmtInsertMapping == null){
-            stmtInsertMapping = db.compileStatement(TaskCategoryTable.STMT_INSERT_MAPPING);
+    private ArrayList<Task> _getSubtree(long id) {
+        ArrayList<Task> subtree = taskCache.getSubtree(id);
+        if (subtree != null){
+            return subtree;
         }
-        for (Category cat : task.getCategories().values()){
-            stmtInsertMapping.bindLong(1, task.id);
-            stmtInsertMapping.bindLong(2, cat.id);
-            stmtInsertMapping.execute();
-            stmtInsertMapping.clearBindings();
+        subtree = new ArrayList<Task>();
+        Task root = _getTaskByID(id);
+        if (root == null){
+            return subtree;
         }
-    }
-
-    private void precacheDataMT() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (catLock){
-                    /** Fill Categories */
-                    _getCategories();
+        subtree.add(root);
+        /* all tasks below root, categories and reminders are read at once */
+        HashMap<Long, Task> descendants = new HashMap<Long, Task>();
+        HashMap<Long, Task> level = new HashMap<Long, Task>();
+        level.put(root.id, root);
+        while (!level.isEmpty()){
+            HashMap<Long, Task> nextLevel = new HashMap<Long, Task>();
+            Cursor cur = db.query(TaskTable.TABLE_NAME, TaskTable.ALL_COLUMNS, TaskTable.COL_PARENT
+                    + " IN (" + idList(level.keySet()) + ")", null, null, null, null);
+            while (cur.moveToNext()){
+                Task task = buildTaskFromCursorAtPosition(cur);
+                /* skip cycles in parent column */
+                if (task.id.longValue() == root.id.longValue() || descendants.containsKey(task.id)){
+                    continue;
                 }
-                // synchronized (taskLock) {
-                // /** fill Tasks */
-                // _getTasks();
-                // }
+                level.get(cur.getLong(TaskTable.IDX_PARENT)).addSubtask(task);
+                descendants.put(task.id, task);
+                nextLevel.put(task.id, task);
+                subtree.add(task);
             }
-        }).start();
+            cur.close();
+            level = nextLevel;
+        }
+        getCategoriesForTasks(descendants);
+        getRemindersForTasks(descendants);
+        return subtree;
+    }
+
+    /**
+     * The k most urgent open tasks from the task cache, kept in a bounded heap instead of
+     * sorting all open tasks
+     * 
+     * @param k
+     *            maximum number of tasks
+     * @return up to k open tasks (sorted by least laxity)
+     */
+    private ArrayList<Task> _getTopTasks(int k) {
+        ArrayList<Task> head = taskCache.getOpenHead(k);
+        if (head == null){
+            fillTaskCache();
+            head = taskCache.getOpenHead(k);
+        }
+        return head;
+    }
+
+    /**
+     * Build an ArrayList of all open tasks (progress < 1.0) from the task cache, does not spawn a
+     * new Thread
+     * 
+     * @return ArrayList<Task> - open tasks (sorted by least Laxity)
+     */
+    private ArrayList<Task> _getTaskOverview() {
+        ArrayList<Task> openTasks = taskCache.getOpen();
+        if (openTasks == null){
+            fillTaskCache();
+            openTasks = taskCache.getOpen();
+        }
+        new LeastLaxityScheduler().sort(openTasks);
+        return openTasks;
+    }
+
+    /**
+     * Update a task<-> CategoryMapping by deleting and inserting new values
+     * 
+     * @param task
+     */
+    private void insertTaskCategoryMapping(Task task) {
+        /** insert Categories */
+        if (stmtInsertMapping == null){
+            stmtInsertMapping = db.compileStatement(TaskCategoryTable.STMT_INSERT_MAPPING);
+        }
+        for (Category cat : task.getCategories().values()){
+            stmtInsertMapping.bindLong(1, task.id);
+            stmtInsertMapping.bindLong(2, cat.id);
+            stmtInsertMapping.execute();
+            stmtInsertMapping.clearBindings();
+        }
+    }
+
+    private void precacheDataMT() {
+        writeQueue.post(new Runnable() {
+            @Override
+            public void run() {
+                /** Fill Categories */
+                _getCategories();
+                /** fill Tasks */
+                fillTaskCache();
+            }
+        });
     }
 
     /**
@@ -546,10 +1082,11 @@ public class TaskDBService extends Service {
      *            to be removed
      */
     private void _deleteCategoryMT(final Category category) {
-        new Thread(new Runnable() {
+        writeQueue.post(new Runnable() {
             @Override
             public void run() {
                 if (category != null){
+                    touchTasksOfCategory(category.id);
                     db.delete(CategoryTable.TABLE_NAME, CategoryTable.COL_ID + "='" + category.id
                             + "'", null);
                     /** Clear all categories */
@@ -561,27 +1098,97 @@ public class TaskDBService extends Service {
                     stmtDeleteMappingCatID.execute();
                     /* add category to local list */
                     synchronized (catLock){
-                        categories.remove(category);
+                        categories = categories.without(category.id);
                     }
+                    taskCache.removeCategory(category);
                 }
             }
-        }).start();
+        });
     }
 
     /**
-     * Delete a single task from table
+     * Delete a single task from table. Returns at once, the delete runs in the writer thread
+     * after the waiting jobs of the task, the cache is updated and widgets notified once it is
+     * committed.
      * 
      * @param task
      *            Task to remove
      */
-    private void _deleteTask(Task task) {
+    private void _deleteTask(final Task task) {
         if (task != null){
-            // delete mapping //
-            deleteTaskCategoryMapping(task.id);
-            db.delete(TaskTable.TABLE_NAME, TaskTable.COL_ID + "='" + task.id + "'", null);
-            db.delete(ReminderTable.TABLE_NAME, ReminderTable.COL_TID + "='" + task.id + "'", null);
-            updateWidgets();
+            final long id = task.id;
+            /* a waiting update must not re-create mappings or reminders of the deleted task */
+            writeQueue.cancelUpdate(id);
+            writeQueue.postForTask(id, new Runnable() {
+                @Override
+                public void run() {
+                    db.beginTransaction();
+                    try{
+                        writeTaskDelete(id);
+                        db.setTransactionSuccessful();
+                    } finally{
+                        db.endTransaction();
+                    }
+                    taskCache.remove(id);
+                    notifyDataChanged();
+                }
+            });
+        }
+    }
+
+    /**
+     * Delete all tasks in one transaction. Waits until the transaction is committed, the cache
+     * is updated and widgets notified only if it succeeded. A failure is thrown in the caller
+     * thread.
+     * 
+     * @param tasks
+     *            Tasks to remove
+     */
+    private void _deleteTasks(final List<Task> tasks) {
+        for (Task task : tasks){
+            writeQueue.cancelUpdate(task.id);
+        }
+        writeQueue.postAndWait(new Runnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try{
+                    for (Task task : tasks){
+                        writeTaskDelete(task.id);
+                    }
+                    db.setTransactionSuccessful();
+                } finally{
+                    db.endTransaction();
+                }
+                /* only committed changes reach the cache */
+                for (Task task : tasks){
+                    taskCache.remove(task.id);
+                }
+            }
+        });
+        notifyDataChanged();
+    }
+
+    /**
+     * Remove task record, category mapping and reminders of a task. Runs in the writer thread.
+     * 
+     * @param taskid
+     */
+    private void writeTaskDelete(long taskid) {
+        // delete mapping //
+        deleteTaskCategoryMapping(taskid);
+        if (stmtInsertTombstone == null){
+            stmtInsertTombstone = db.compileStatement(DeletedTaskTable.STMT_INSERT_TOMBSTONE);
         }
+        stmtInsertTombstone.bindLong(1, nextModificationTime());
+        stmtInsertTombstone.bindLong(2, taskid);
+        stmtInsertTombstone.execute();
+        if (stmtDeleteTask == null){
+            stmtDeleteTask = db.compileStatement(TaskTable.STMT_DELETE_TASK);
+        }
+        stmtDeleteTask.bindLong(1, taskid);
+        stmtDeleteTask.execute();
+        deleteTaskReminders(taskid);
     }
 
     /**
@@ -590,23 +1197,28 @@ public class TaskDBService extends Service {
      * @return ArrayList of categories
      */
     private ArrayList<Category> _getCategories() {
-        synchronized (catLock){
-            if (categories.isEmpty()){
-                Cursor cur = db.query(CategoryTable.TABLE_NAME, CategoryTable.ALL_COLUMNS, null,
-                        null, null, null, null);
-                while (cur.moveToNext()){
-                    Category cat = new Category(cur.getLong(CategoryTable.IDX_ID),
-                            cur.getString(CategoryTable.IDX_NAME));
-                    categories.add(cat);
+        if (!categoriesLoaded){
+            synchronized (catLock){
+                if (!categoriesLoaded){
+                    ArrayList<Category> loaded = new ArrayList<Category>(5);
+                    Cursor cur = db.query(CategoryTable.TABLE_NAME, CategoryTable.ALL_COLUMNS,
+                            null, null, null, null, null);
+                    while (cur.moveToNext()){
+                        Category cat = new Category(cur.getLong(CategoryTable.IDX_ID),
+                                cur.getString(CategoryTable.IDX_NAME));
+                        loaded.add(cat);
+                    }
+                    cur.close();
+                    categories = CategorySnapshot.of(loaded);
+                    categoriesLoaded = true;
                 }
-                cur.close();
             }
         }
-        return categories;
+        return categories.toList();
     }
 
     /**
-     * Spawn a new Thread and retrieve a sorted list of tasks. The list will be be sorted and placed
+     * Queue a job in the writer thread and retrieve a sorted list of tasks. The list will be be sorted and placed
      * in callbacks.content
      * 
      * @param receiver
@@ -615,15 +1227,13 @@ public class TaskDBService extends Service {
      *            Runnable object of caller thread
      */
     private void _getCategoryListMT(final Handler receiver, final ListRunnable<Category> callback) {
-        new Thread(new Runnable() {
+        writeQueue.post(new Runnable() {
             @Override
             public void run() {
-                synchronized (categories){
-                    callback.content = new ArrayList<Category>(_getCategories());
-                }
+                callback.content = _getCategories();
                 receiver.post(callback);
             }
-        }).start();
+        });
     }
 
     /**
@@ -634,20 +1244,54 @@ public class TaskDBService extends Service {
      * @return task from ArrayList with matching ID
      */
     private Task _getTaskByID(long id) {
+        return _getTaskByID(id, true);
+    }
+
+    /**
+     * Retrieve a record from database and create a Task object
+     * 
+     * @param id
+     *            - unique id (primary key in database)
+     * @param linkParent
+     *            read the parent task as well if it is not cached
+     * @return task with matching ID
+     */
+    private Task _getTaskByID(long id, boolean linkParent) {
         Task task = null;
         cur_Taskset = db.query(TaskTable.TABLE_NAME, TaskTable.ALL_COLUMNS, TaskTable.COL_ID
                 + " = '" + id + "' ", null, null, null, null);
+        Long parentID = null;
         if (cur_Taskset.moveToFirst()){
             task = buildTaskFromCursorAtPosition(cur_Taskset);
+            parentID = getParentID(cur_Taskset);
             getCategoriesForTask(task);
             task.setReminders(_getReminders(task.id));
         }
         cur_Taskset.close();
+        /* link to parent, otherwise the next update would clear the parent column */
+        if (parentID != null && parentID.longValue() != id){
+            Task parent = taskCache.get(parentID);
+            if (parent == null && linkParent){
+                parent = _getTaskByID(parentID, false);
+            }
+            task.setParent(parent);
+        }
         return task;
     }
 
     /**
-     * Spawn a new Thread and retrieve a sorted list of tasks. The list will be be sorted and placed
+     * Queue for asynchronous reads. Once the task cache is filled it reflects all writes already
+     * queued, thus reads can bypass the writer. Before that they keep their order behind the
+     * writes.
+     * 
+     * @return reader or writer queue
+     */
+    private WriteQueue readJobQueue() {
+        return taskCache.isFilled() ? readQueue : writeQueue;
+    }
+
+    /**
+     * Queue a job in the reader or writer thread and retrieve a sorted list of tasks. The list will be be sorted and placed
      * in callbacks.content
      * 
      * @param receiver
@@ -656,13 +1300,391 @@ public class TaskDBService extends Service {
      *            Runnable object of caller thread
      */
     private void _getTaskListMT(final Handler receiver, final ListRunnable<Task> callback) {
-        new Thread(new Runnable() {
+        readJobQueue().post(new Runnable() {
+            @Override
+            public void run() {
+                callback.content = _getTasks();
+                receiver.post(callback);
+            }
+        });
+    }
+
+    /**
+     * Queue a job in the reader or writer thread and retrieve the ids of all tasks in scheduling order. The
+     * ids will be placed in callbacks.content
+     * 
+     * @param receiver
+     *            Handler object or caller thread
+     * @param callback
+     *            Runnable object of caller thread
+     */
+    private void _getTaskIDListMT(final Handler receiver, final ListRunnable<Long> callback) {
+        readJobQueue().post(new Runnable() {
+            @Override
+            public void run() {
+                callback.content = _getTaskIDs(null);
+                receiver.post(callback);
+            }
+        });
+    }
+
+    /**
+     * Queue a job in the reader or writer thread and retrieve tasks by id. The tasks will be
+     * placed in callbacks.content
+     * 
+     * @param ids
+     *            task ids, copied before the job is queued
+     * @param receiver
+     *            Handler object or caller thread
+     * @param callback
+     *            Runnable object of caller thread
+     */
+    private void _getTasksByIDMT(List<Long> ids, final Handler receiver,
+            final ListRunnable<Task> callback) {
+        final ArrayList<Long> copy = new ArrayList<Long>(ids);
+        readJobQueue().post(new Runnable() {
             @Override
             public void run() {
-                callback.content = new ArrayList<Task>(_getTasks());
+                callback.content = _getTasksByID(copy);
                 receiver.post(callback);
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Ids of tasks sorted by least laxity. Sorted in memory if the task cache is filled, otherwise
+     * read in order of the laxity key index without building tasks.
+     * 
+     * @param filter
+     *            categories, null or empty for all tasks
+     * @return task ids
+     */
+    private ArrayList<Long> _getTaskIDs(List<Category> filter) {
+        boolean filtered = filter != null && !filter.isEmpty();
+        ArrayList<Long> categoryIDs = null;
+        if (filtered){
+            categoryIDs = new ArrayList<Long>(filter.size());
+            for (Category cat : filter){
+                categoryIDs.add(cat.id);
+            }
+        }
+        ArrayList<Long> sorted = taskCache.getSortedIDs(categoryIDs);
+        if (sorted != null){
+            return sorted;
+        }
+
+        String query = TaskTable.STMT_GET_IDS_BY_LAX;
+        if (filtered){
+            query = String.format(TaskTable.STMT_GET_IDS_BY_LAX_CATEGORIES, idList(categoryIDs));
+        }
+        /* rows arrive ordered by laxity key, only priorities within a slot are reordered */
+        Cursor cur = db.rawQuery(query, null);
+        int n = cur.getCount();
+        long[] ids = new long[n];
+        long[] laxityKeys = new long[n];
+        int[] priority = new int[n];
+        int i = 0;
+        while (cur.moveToNext() && i < n){
+            ids[i] = cur.getLong(0);
+            priority[i] = cur.getInt(1);
+            laxityKeys[i] = cur.getLong(2);
+            i++;
+        }
+        cur.close();
+        return new LeastLaxityScheduler().sortIDs(ids, laxityKeys, priority, i);
+    }
+
+    /**
+     * Tasks by id from cache or, if not filled, read with one query including categories and
+     * reminders
+     * 
+     * @param ids
+     * @return tasks in order of ids
+     */
+    private ArrayList<Task> _getTasksByID(List<Long> ids) {
+        ArrayList<Task> tasks = new ArrayList<Task>(ids.size());
+        if (taskCache.isFilled()){
+            return taskCache.get(ids);
+        }
+        if (ids.isEmpty()){
+            return tasks;
+        }
+        HashMap<Long, Task> taskMap = new HashMap<Long, Task>(ids.size() * 2);
+        Cursor cur = db.query(TaskTable.TABLE_NAME, TaskTable.ALL_COLUMNS, TaskTable.COL_ID
+                + " IN (" + idList(ids) + ")", null, null, null, null);
+        while (cur.moveToNext()){
+            Task task = buildTaskFromCursorAtPosition(cur);
+            taskMap.put(task.id, task);
+        }
+        cur.close();
+        getCategoriesForTasks(taskMap);
+        getRemindersForTasks(taskMap);
+        for (Long id : ids){
+            Task task = taskMap.get(id);
+            if (task != null){
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Inverted index from category id to the positions of its tasks in ids. Built from the task
+     * cache if filled, otherwise from one read of the mapping table.
+     * 
+     * @param ids
+     *            task ids
+     * @return bitset of positions in ids by category id
+     */
+    private HashMap<Long, BitSet> _getCategoryIndex(List<Long> ids) {
+        HashMap<Long, BitSet> index = new HashMap<Long, BitSet>();
+        int size = ids.size();
+        if (taskCache.isFilled()){
+            for (int pos = 0; pos < size; pos++){
+                ArrayList<Long> categoryIDs = taskCache.getCategoryIDs(ids.get(pos));
+                if (categoryIDs != null){
+                    for (Long catid : categoryIDs){
+                        markCategory(index, catid, pos, size);
+                    }
+                }
+            }
+            return index;
+        }
+        HashMap<Long, Integer> positions = new HashMap<Long, Integer>(size * 2);
+        for (int pos = 0; pos < size; pos++){
+            positions.put(ids.get(pos), pos);
+        }
+        Cursor cur = db.query(TaskCategoryTable.TABLE_NAME, new String[] {
+                TaskCategoryTable.COL_TID, TaskCategoryTable.COL_CID }, null, null, null, null,
+                null);
+        while (cur.moveToNext()){
+            Integer pos = positions.get(cur.getLong(0));
+            if (pos != null){
+                markCategory(index, cur.getLong(1), pos, size);
+            }
+        }
+        cur.close();
+        return index;
+    }
+
+    /**
+     * Set bit pos in the bitset of category catid, the bitset is created on first use
+     */
+    private static void markCategory(HashMap<Long, BitSet> index, Long catid, int pos, int size) {
+        BitSet bits = index.get(catid);
+        if (bits == null){
+            bits = new BitSet(size);
+            index.put(catid, bits);
+        }
+        bits.set(pos);
+    }
+
+    /**
+     * Write all tasks as one VCALENDAR. Tasks are taken from the cache if filled, otherwise read
+     * in chunks of IN_LIST_LIMIT rows that are completed with categories and reminders, written
+     * and dropped. Runs in caller thread.
+     * 
+     * @param writer
+     *            destination, should be buffered, is not closed
+     * @return number of tasks written
+     * @throws IOException
+     */
+    private int _exportTasks(Writer writer) throws IOException {
+        VcalWriter vcal = new VcalWriter(writer);
+        ArrayList<Task> cached = taskCache.getAll();
+        if (cached != null){
+            for (Task task : cached){
+                vcal.write(task);
+            }
+        } else{
+            exportCursor(vcal, db.query(TaskTable.TABLE_NAME, TaskTable.ALL_COLUMNS, null, null,
+                    null, null, TaskTable.COL_ID));
+        }
+        vcal.finish();
+        return vcal.getCount();
+    }
+
+    /**
+     * Write tasks with lastmod and tombstones with deletion time at or after since as one
+     * VCALENDAR. The writer thread takes the new watermark and the ids of changed tasks and the
+     * tombstones, both range scans on an index, thus every later write has a time stamp at or
+     * after the watermark and every earlier one is exported. Only this snapshot waits for
+     * queued writes, the task rows are read and written in the caller thread in chunks of
+     * IN_LIST_LIMIT. A task changed after the snapshot is written with its new content and again
+     * by the next export, a task deleted after it is skipped, its tombstone follows next time.
+     * Tasks are read from the table, not from the cache, to export the stored modification time.
+     * 
+     * @param writer
+     *            destination, should be buffered, is not closed
+     * @param since
+     *            previous watermark
+     * @return new watermark
+     * @throws IOException
+     */
+    private long _exportTasksSince(Writer writer, final long since) throws IOException {
+        final long[] watermark = new long[1];
+        final ArrayList<Long> changed = new ArrayList<Long>();
+        final ArrayList<long[]> tombstones = new ArrayList<long[]>();
+        writeQueue.postAndWait(new Runnable() {
+            @Override
+            public void run() {
+                watermark[0] = nextModificationTime();
+                String[] args = new String[] { Long.toString(since) };
+                Cursor cur = db.query(TaskTable.TABLE_NAME, new String[] { TaskTable.COL_ID },
+                        TaskTable.COL_LAST + " >= ?", args, null, null, TaskTable.COL_LAST);
+                try{
+                    while (cur.moveToNext()){
+                        changed.add(cur.getLong(0));
+                    }
+                } finally{
+                    cur.close();
+                }
+                cur = db.query(DeletedTaskTable.TABLE_NAME, DeletedTaskTable.ALL_COLUMNS,
+                        DeletedTaskTable.COL_DEL + " >= ?", args, null, null,
+                        DeletedTaskTable.COL_DEL);
+                try{
+                    while (cur.moveToNext()){
+                        tombstones.add(new long[] { cur.getLong(DeletedTaskTable.IDX_ID),
+                                cur.getLong(DeletedTaskTable.IDX_CREA) });
+                    }
+                } finally{
+                    cur.close();
+                }
+            }
+        });
+        VcalWriter vcal = new VcalWriter(writer);
+        for (int start = 0; start < changed.size(); start += IN_LIST_LIMIT){
+            List<Long> chunk = changed.subList(start,
+                    Math.min(changed.size(), start + IN_LIST_LIMIT));
+            exportCursor(vcal, db.query(TaskTable.TABLE_NAME, TaskTable.ALL_COLUMNS,
+                    TaskTable.COL_ID + " IN (" + idList(chunk) + ")", null, null, null,
+                    TaskTable.COL_LAST));
+        }
+        for (long[] tombstone : tombstones){
+            vcal.writeDeleted(tombstone[0], tombstone[1]);
+        }
+        vcal.finish();
+        return watermark[0];
+    }
+
+    /**
+     * Remove tombstones older than DeletedTaskTable.RETENTION. Queued in the writer thread.
+     */
+    private void pruneTombstonesMT() {
+        writeQueue.post(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteStatement stmt = db.compileStatement(DeletedTaskTable.STMT_DELETE_BEFORE);
+                stmt.bindLong(1, System.currentTimeMillis() - DeletedTaskTable.RETENTION);
+                stmt.execute();
+                stmt.close();
+            }
+        });
+    }
+
+    /**
+     * Write all tasks of a cursor on ALL_COLUMNS in chunks of IN_LIST_LIMIT rows that are
+     * completed with categories and reminders, written and dropped. The cursor is closed.
+     */
+    private void exportCursor(VcalWriter vcal, Cursor cur) throws IOException {
+        LinkedHashMap<Long, Task> chunk = new LinkedHashMap<Long, Task>(IN_LIST_LIMIT * 2);
+        try{
+            while (cur.moveToNext()){
+                Task task = buildTaskFromCursorAtPosition(cur);
+                chunk.put(task.id, task);
+                if (chunk.size() == IN_LIST_LIMIT){
+                    exportChunk(vcal, chunk);
+                }
+            }
+            exportChunk(vcal, chunk);
+        } finally{
+            cur.close();
+        }
+    }
+
+    /**
+     * Complete the tasks of chunk with categories and reminders, write and remove them
+     */
+    private void exportChunk(VcalWriter vcal, LinkedHashMap<Long, Task> chunk) throws IOException {
+        getCategoriesForTasks(chunk);
+        getRemindersForTasks(chunk);
+        for (Task task : chunk.values()){
+            vcal.write(task);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * Read VTODO and VEVENT items from an iCalendar stream and insert them as new tasks. Tasks are
+     * inserted in transactions of IMPORT_BATCH_SIZE as the stream is parsed, thus memory does not
+     * grow with the size of the file. Categories are matched by name ignoring case, unknown names
+     * are dropped. Runs in caller thread.
+     * 
+     * @param reader
+     *            source, is not closed
+     * @return number of tasks imported
+     * @throws IOException
+     */
+    private int _importTasks(Reader reader) throws IOException {
+        final HashMap<String, Category> categoryByName = new HashMap<String, Category>();
+        for (Category category : _getCategories()){
+            categoryByName.put(category.name.toLowerCase(Locale.getDefault()), category);
+        }
+        final ArrayList<Task> batch = new ArrayList<Task>(IMPORT_BATCH_SIZE);
+        int count = new VcalParser(reader).parse(new VcalParser.TaskHandler() {
+            @Override
+            public void onTask(Task task, List<String> categoryNames) {
+                for (String name : categoryNames){
+                    Category category = categoryByName.get(name.toLowerCase(Locale.getDefault()));
+                    if (category != null){
+                        task.getCategories().put(category.id, category);
+                    }
+                }
+                batch.add(task);
+                if (batch.size() == IMPORT_BATCH_SIZE){
+                    _insertTasks(new ArrayList<Task>(batch));
+                    batch.clear();
+                }
+            }
+        });
+        if (!batch.isEmpty()){
+            _insertTasks(batch);
+        }
+        return count;
+    }
+
+    /**
+     * Selection for the rows of the tasks in taskMap. Small sets are looked up by index, for large
+     * sets the whole table is read and filtered by the caller.
+     * 
+     * @param column
+     *            task id column
+     * @param taskMap
+     *            tasks by id
+     * @return where clause or null for all rows
+     */
+    private static String selectTaskIDs(String column, HashMap<Long, Task> taskMap) {
+        if (taskMap.size() > IN_LIST_LIMIT){
+            return null;
+        }
+        return column + " IN (" + idList(taskMap.keySet()) + ")";
+    }
+
+    /**
+     * Build comma separated list of ids for "IN (...)" clauses
+     * 
+     * @param ids
+     * @return e.g. "1,5,7"
+     */
+    private static String idList(Collection<Long> ids) {
+        StringBuilder builder = new StringBuilder(ids.size() * 6);
+        for (Long id : ids){
+            if (builder.length() > 0){
+                builder.append(',');
+            }
+            builder.append(id.longValue());
+        }
+        return builder.toString();
     }
 
     /**
@@ -673,7 +1695,7 @@ public class TaskDBService extends Service {
      *            new category
      */
     private void _insertCategoryMT(final Category category) {
-        new Thread(new Runnable() {
+        writeQueue.post(new Runnable() {
             @Override
             public void run() {
                 if (stmtCategoryInsert == null){
@@ -684,58 +1706,112 @@ public class TaskDBService extends Service {
                 category.id = stmtCategoryInsert.executeInsert();
                 /* add category to local list */
                 synchronized (catLock){
-                    categories.add(category);
+                    categories = categories.with(category);
                 }
             }
-        }).start();
+        });
     }
 
     /**
-     * Insert a task object as record in database. The tasks id is updated Spawns a new Thread
+     * Insert a task object as record in database. The tasks id is updated The write is queued in
+     * the writer thread
      * 
      * @param task
      *            Task to insert
      */
     private void _insertTaskMT(final Task task) {
-        new Thread(new Runnable() {
+        writeQueue.post(new Runnable() {
             @Override
             public void run() {
-                if (stmtTaskInsert == null){
-                    stmtTaskInsert = db.compileStatement(TaskTable.STMT_INSERT_TASK);
-                }
-                stmtTaskInsert.bindString(1, task.name);
-                stmtTaskInsert.bindLong(2, task.getPriorityOrdinal());
-                int suspended = task.isSuspended() ? 1 : 0;
-                stmtTaskInsert.bindLong(3, suspended);
-
-                stmtTaskInsert.bindDouble(4, task.getProgress());
-                stmtTaskInsert.bindLong(5, task.getWcet());
-                stmtTaskInsert.bindLong(6, task.getActual());
-
-                stmtTaskInsert.bindLong(7, task.getStart().getTimeInMillis());
-                long due = 0L;
-                if (task.getDue() != null){
-                    due = task.getDue().getTimeInMillis();
+                writeTaskInsert(task);
+                taskCache.put(task);
+                notifyDataChanged();
+            }
+        });
+    }
+
+    /**
+     * Insert all tasks in one transaction, the ids of the tasks are updated. Waits until the
+     * transaction is committed, the cache is updated and widgets notified only if it succeeded.
+     * A failure is thrown in the caller thread.
+     * 
+     * @param tasks
+     *            Tasks to insert
+     */
+    private void _insertTasks(final List<Task> tasks) {
+        writeQueue.postAndWait(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    db.beginTransaction();
+                    try{
+                        for (Task task : tasks){
+                            writeTaskInsert(task);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally{
+                        db.endTransaction();
+                    }
+                } catch (RuntimeException exc){
+                    /* the rows were rolled back, their ids are not valid */
+                    for (Task task : tasks){
+                        task.id = null;
+                    }
+                    throw exc;
                 }
-                stmtTaskInsert.bindLong(8, due);
-                /* additional info */
-                stmtTaskInsert.bindString(9, task.desc);
-                stmtTaskInsert.bindString(10, task.location);
-
-                task.id = stmtTaskInsert.executeInsert();
-                // synchronized (taskLock) {
-                // allTasks.add(task);
-                // }
-                /** update categories */
-                insertTaskCategoryMapping(task);
-                /** insert Reminders */
-                for (Reminder reminder : task.getReminders()){
-                    reminder.setTaskId(task.id);
-                    _insertReminder(reminder);
+                /* only committed changes reach the cache */
+                for (Task task : tasks){
+                    taskCache.put(task);
                 }
-                updateWidgets();
             }
-        }).start();
+        });
+        notifyDataChanged();
+    }
+
+    /**
+     * Write task record, category mapping and reminders of a new task, the tasks id is updated.
+     * Runs in the writer thread.
+     * 
+     * @param task
+     *            Task to insert
+     */
+    private void writeTaskInsert(Task task) {
+        if (stmtTaskInsert == null){
+            stmtTaskInsert = db.compileStatement(TaskTable.STMT_INSERT_TASK);
+        }
+        stmtTaskInsert.bindString(1, task.name);
+        stmtTaskInsert.bindLong(2, task.getPriorityOrdinal());
+        int suspended = task.isSuspended() ? 1 : 0;
+        stmtTaskInsert.bindLong(3, suspended);
+
+        stmtTaskInsert.bindDouble(4, task.getProgress());
+        stmtTaskInsert.bindLong(5, task.getWcet());
+        stmtTaskInsert.bindLong(6, task.getActual());
+
+        stmtTaskInsert.bindLong(7, task.getStartMs());
+        stmtTaskInsert.bindLong(8, task.getDueMs());
+        /* additional info */
+        stmtTaskInsert.bindString(9, task.desc);
+        stmtTaskInsert.bindString(10, task.location);
+
+        if (task.getParent() != null && task.getParent().id != null){
+            stmtTaskInsert.bindLong(11, task.getParent().id);
+        } else{
+            stmtTaskInsert.bindNull(11);
+        }
+        stmtTaskInsert.bindLong(12, task.getLaxityKey());
+        long now = nextModificationTime();
+        stmtTaskInsert.bindLong(13, now);
+        stmtTaskInsert.bindLong(14, now);
+
+        task.id = stmtTaskInsert.executeInsert();
+        /** update categories */
+        insertTaskCategoryMapping(task);
+        /** insert Reminders */
+        for (Reminder reminder : task.getReminders()){
+            reminder.setTaskId(task.id);
+            _insertReminder(reminder);
+        }
     }
 
     /**
@@ -749,14 +1825,14 @@ public class TaskDBService extends Service {
         boolean retval = task.markComplete();
         ContentValues content = new ContentValues();
         content.put(TaskTable.COL_PROG, 1.0f);
+        content.put(TaskTable.COL_LAX, task.getLaxityKey());
         content.put(TaskTable.COL_STATE, 0);
         if (retval){
             // if task was running, clear resumed time stamp and write actual
             content.put(TaskTable.COL_RES, 0);
             content.put(TaskTable.COL_ACT, task.getActual());
         }
-        db.update(TaskTable.TABLE_NAME, content, TaskTable.COL_ID + "='" + task.id + "'", null);
-        updateWidgets();
+        writeTaskColumns(task, content);
         return retval;
     }
 
@@ -772,8 +1848,7 @@ public class TaskDBService extends Service {
             ContentValues content = new ContentValues();
             content.put(TaskTable.COL_RES, task.resumed);
             content.put(TaskTable.COL_STATE, 0);
-            db.update(TaskTable.TABLE_NAME, content, TaskTable.COL_ID + "='" + task.id + "'", null);
-            updateWidgets();
+            writeTaskColumns(task, content);
             return true;
         } else{
             return false;
@@ -795,9 +1870,9 @@ public class TaskDBService extends Service {
             if (delta >= 0){
                 content.put(TaskTable.COL_ACT, task.getActual());
                 content.put(TaskTable.COL_PROG, task.getProgress());
+                content.put(TaskTable.COL_LAX, task.getLaxityKey());
             }
-            db.update(TaskTable.TABLE_NAME, content, TaskTable.COL_ID + "='" + task.id + "'", null);
-            updateWidgets();
+            writeTaskColumns(task, content);
             return true;
         } else{
             return false;
@@ -819,8 +1894,33 @@ public class TaskDBService extends Service {
         task.suspend(suspend);
         int suspended = suspend ? 1 : 0;
         content.put(TaskTable.COL_STATE, suspended);
-        db.update(TaskTable.TABLE_NAME, content, TaskTable.COL_ID + "='" + task.id + "'", null);
-        updateWidgets();
+        writeTaskColumns(task, content);
+    }
+
+    /**
+     * Write some state columns of a task and its modification time in the writer thread. The
+     * cached task is updated with the written columns once the statement succeeded, a waiting
+     * update of the task runs before.
+     * 
+     * @param task
+     *            task with valid id
+     * @param content
+     *            changed columns
+     */
+    private void writeTaskColumns(Task task, final ContentValues content) {
+        final long id = task.id;
+        writeQueue.postForTask(id, new Runnable() {
+            @Override
+            public void run() {
+                content.put(TaskTable.COL_LAST, nextModificationTime());
+                db.update(TaskTable.TABLE_NAME, content, TaskTable.COL_ID + "='" + id + "'", null);
+                Integer state = content.getAsInteger(TaskTable.COL_STATE);
+                taskCache.putState(id, content.getAsFloat(TaskTable.COL_PROG),
+                        content.getAsLong(TaskTable.COL_ACT), content.getAsLong(TaskTable.COL_RES),
+                        state == null ? null : Boolean.valueOf(state.intValue() != 0));
+                notifyDataChanged();
+            }
+        });
     }
 
     /**
@@ -832,92 +1932,165 @@ public class TaskDBService extends Service {
      */
     private void _updateCategoryMT(final Category category) {
         if (category.id != null && category.name.length() != 0){
-            new Thread(new Runnable() {
+            writeQueue.post(new Runnable() {
                 @Override
                 public void run() {
                     ContentValues content = new ContentValues();
                     content.put(CategoryTable.COL_NAME, category.name);
                     db.update(CategoryTable.TABLE_NAME, content, CategoryTable.COL_ID + "='"
                             + category.id + "'", null);
+                    /* the name is exported with each task */
+                    touchTasksOfCategory(category.id);
                     /* add category to local list */
-                    synchronized (catLock){
-                        for (Category catInList : categories){
-                            if (catInList.id.longValue() == category.id.longValue()){
-                                catInList.name = category.name.toString();
-                            }
-                        }
+                    /* tasks reference the cached object, rename it in place */
+                    Category catInList = categories.get(category.id);
+                    if (catInList != null){
+                        catInList.name = category.name.toString();
                     }
                 }
-            }).start();
+            });
         }
     }
 
     /**
-     * Update a task record in database, called when editing task information. Spawns a new thread
+     * Update a task record in database, called when editing task information. The write is queued
+     * in the writer thread
      * 
      * @param task
      *            to update
      */
     private void _updateTaskMT(final Task task) {
         if (task.id != null){
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    deleteTaskCategoryMapping(task.id);
-                    insertTaskCategoryMapping(task);
-
-                    /** update Task Table */
-                    if (stmtTaskUpdate == null){
-                        stmtTaskUpdate = db.compileStatement(TaskTable.STMT_UPDATE_TASK);
-                    }
-                    stmtTaskUpdate.bindString(1, task.name);
-                    stmtTaskUpdate.bindLong(2, task.getPriorityOrdinal());
-                    int suspended = task.isSuspended() ? 1 : 0;
-                    stmtTaskUpdate.bindLong(3, suspended);
-
-                    stmtTaskUpdate.bindDouble(4, task.getProgress());
-                    stmtTaskUpdate.bindLong(5, task.getWcet());
-                    stmtTaskUpdate.bindLong(6, task.getActual());
+            writeQueue.postUpdate(task, taskUpdateWriter);
+        }
+    }
 
-                    stmtTaskUpdate.bindLong(7, task.getStart().getTimeInMillis());
+    /**
+     * Writes an update and refreshes cache and widgets, runs in the writer thread. Updates of the
+     * same task queued in a row are merged by the WriteQueue and written once.
+     */
+    private final WriteQueue.TaskWriter taskUpdateWriter = new WriteQueue.TaskWriter() {
+        @Override
+        public void write(Task task) {
+            writeTaskUpdate(task);
+            taskCache.put(task);
+            notifyDataChanged();
+        }
+    };
 
-                    long due = 0L;
-                    if (task.getDue() != null){
-                        due = task.getDue().getTimeInMillis();
-                    }
-                    stmtTaskUpdate.bindLong(8, due);
-                    /* additional info */
-                    stmtTaskUpdate.bindString(9, task.desc);
-                    stmtTaskUpdate.bindString(10, task.location);
-
-                    if (task.getParent() != null){
-                        stmtTaskUpdate.bindLong(11, task.getParent().id);
-                    } else{
-                        stmtTaskUpdate.bindNull(11);
+    /**
+     * Update all tasks in one transaction. Waits until the transaction is committed, the cache
+     * is updated and widgets notified only if it succeeded. A failure is thrown in the caller
+     * thread.
+     * 
+     * @param tasks
+     *            Tasks to update, tasks without id are skipped
+     */
+    private void _updateTasks(final List<Task> tasks) {
+        for (Task task : tasks){
+            if (task.id != null){
+                writeQueue.cancelUpdate(task.id);
+            }
+        }
+        writeQueue.postAndWait(new Runnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try{
+                    for (Task task : tasks){
+                        if (task.id != null){
+                            writeTaskUpdate(task);
+                        }
                     }
-                    /* Where clause */
-                    stmtTaskUpdate.bindLong(12, task.id);
-                    stmtTaskUpdate.execute();
-
-                    /** delete all reminders of this task */
-                    db.delete(ReminderTable.TABLE_NAME, ReminderTable.COL_TID + "='" + task.id
-                            + "'", null);
-                    /** Update (insert) reminders */
-                    for (Reminder reminder : task.getReminders()){
-                        _insertReminder(reminder);
+                    db.setTransactionSuccessful();
+                } finally{
+                    db.endTransaction();
+                }
+                /* only committed changes reach the cache */
+                for (Task task : tasks){
+                    if (task.id != null){
+                        taskCache.put(task);
                     }
-                    updateWidgets();
                 }
-            }).start();
+            }
+        });
+        notifyDataChanged();
+    }
+
+    /**
+     * Write task record, category mapping and reminders of an existing task. Runs in the writer
+     * thread.
+     * 
+     * @param task
+     *            Task to update
+     */
+    private void writeTaskUpdate(Task task) {
+        deleteTaskCategoryMapping(task.id);
+        insertTaskCategoryMapping(task);
+
+        /** update Task Table */
+        if (stmtTaskUpdate == null){
+            stmtTaskUpdate = db.compileStatement(TaskTable.STMT_UPDATE_TASK);
+        }
+        stmtTaskUpdate.bindString(1, task.name);
+        stmtTaskUpdate.bindLong(2, task.getPriorityOrdinal());
+        int suspended = task.isSuspended() ? 1 : 0;
+        stmtTaskUpdate.bindLong(3, suspended);
+
+        stmtTaskUpdate.bindDouble(4, task.getProgress());
+        stmtTaskUpdate.bindLong(5, task.getWcet());
+        stmtTaskUpdate.bindLong(6, task.getActual());
+
+        stmtTaskUpdate.bindLong(7, task.getStartMs());
+        stmtTaskUpdate.bindLong(8, task.getDueMs());
+        /* additional info */
+        stmtTaskUpdate.bindString(9, task.desc);
+        stmtTaskUpdate.bindString(10, task.location);
+
+        if (task.getParent() != null && task.getParent().id != null){
+            stmtTaskUpdate.bindLong(11, task.getParent().id);
+        } else{
+            stmtTaskUpdate.bindNull(11);
+        }
+        stmtTaskUpdate.bindLong(12, task.getLaxityKey());
+        stmtTaskUpdate.bindLong(13, nextModificationTime());
+        /* Where clause */
+        stmtTaskUpdate.bindLong(14, task.id);
+        stmtTaskUpdate.execute();
+
+        /** delete all reminders of this task */
+        deleteTaskReminders(task.id);
+        /** Update (insert) reminders */
+        for (Reminder reminder : task.getReminders()){
+            reminder.setTaskId(task.id);
+            _insertReminder(reminder);
         }
     }
 
     /**
-     * Method to update widgets when database content changes
+     * Inform widgets and reminder service that database content changed
+     */
+    private void notifyDataChanged() {
+        updateWidgets();
+        updateReminders();
+    }
+
+    /**
+     * Let the reminder service re-arm its alarm for the next reminder. Bursts of changes within
+     * WIDGET_UPDATE_DELAY ms start the service once
+     */
+    private void updateReminders() {
+        widgetHandler.removeCallbacks(reminderUpdate);
+        widgetHandler.postDelayed(reminderUpdate, WIDGET_UPDATE_DELAY);
+    }
+
+    /**
+     * Method to update widgets when database content changes. Bursts of changes within
+     * WIDGET_UPDATE_DELAY ms are merged into one update
      */
     private void updateWidgets() {
-        Intent intent = new Intent(this, WidgetDataService.class);
-        startService(intent);
+        widgetHandler.removeCallbacks(widgetUpdate);
+        widgetHandler.postDelayed(widgetUpdate, WIDGET_UPDATE_DELAY);
     }
 
 }
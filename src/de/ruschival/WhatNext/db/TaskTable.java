@@ -13,6 +13,8 @@
  */
 package de.ruschival.WhatNext.db;
 
+import de.ruschival.WhatNext.Task;
+
 /**
  * @author ruschi
  * 
@@ -48,8 +50,10 @@ public final class TaskTable {
 	public static final String COL_PARENT = "parent";
 	/** Information when task was created */
 	public static final String COL_CREA = "created";
-	/** last modification for synchronization */
+	/** last modification in ms since epoch for synchronization */
 	public static final String COL_LAST = "lastmod";
+	/** due - remaining work, laxity without the scheduling time (Task.getLaxityKey()) */
+	public static final String COL_LAX = "lax_key";
 
 	
 	/**
@@ -87,7 +91,57 @@ public final class TaskTable {
 				+ COL_PRIO + " TINYINT, " + COL_STATE + " TINYINT, " + COL_PROG + " NUMERIC(5,4), "
 				+ COL_WCET + " INTEGER, " + COL_START + " INTEGER, " + COL_DUE + " INTEGER, "
 				+ COL_ACT + " INTEGER, " + COL_RES + " INTEGER, " + COL_DESC + " TEXT, " + COL_LOC
-				+ " TEXT, " + COL_PARENT + " INTEGER, " + COL_CREA + " DATETIME, " + COL_LAST + " DATETIME ) ";
+				+ " TEXT, " + COL_PARENT + " INTEGER, " + COL_CREA + " DATETIME, " + COL_LAST + " DATETIME, "
+				+ COL_LAX + " INTEGER ) ";
+
+	/** Index on progress for selection of open tasks */
+	public static final String STMT_CREATE_INDEX_PROGRESS = " CREATE INDEX IF NOT EXISTS "
+				+ "idx_tasks_progress ON " + TABLE_NAME + "(" + COL_PROG + ")";
+
+	/** Index on due date for range queries */
+	public static final String STMT_CREATE_INDEX_DUE = " CREATE INDEX IF NOT EXISTS "
+				+ "idx_tasks_due ON " + TABLE_NAME + "(" + COL_DUE + ")";
+
+	/** Index on parent for loading sub-trees level by level */
+	public static final String STMT_CREATE_INDEX_PARENT = " CREATE INDEX IF NOT EXISTS "
+				+ "idx_tasks_parent ON " + TABLE_NAME + "(" + COL_PARENT + ")";
+
+	/** Index on laxity key to read tasks ordered by urgency */
+	public static final String STMT_CREATE_INDEX_LAX = " CREATE INDEX IF NOT EXISTS "
+				+ "idx_tasks_lax ON " + TABLE_NAME + "(" + COL_LAX + ")";
+
+	/** Index on last modification for incremental synchronization */
+	public static final String STMT_CREATE_INDEX_LAST = " CREATE INDEX IF NOT EXISTS "
+				+ "idx_tasks_lastmod ON " + TABLE_NAME + "(" + COL_LAST + ")";
+
+	/** Add laxity key column on upgrade */
+	public static final String STMT_ADD_LAX_COLUMN = "ALTER TABLE " + TABLE_NAME
+				+ " ADD COLUMN " + COL_LAX + " INTEGER";
+
+	/**
+	 * Calculate the laxity key of all tasks as Task.getLaxityKey() does: completed tasks last,
+	 * tasks without due date before them
+	 */
+	public static final String STMT_UPDATE_ALL_LAX = "UPDATE " + TABLE_NAME + " SET " + COL_LAX
+				+ " = CASE WHEN " + COL_PROG + " > 0.99 THEN " + Task.LAXITY_DONE + " WHEN "
+				+ COL_DUE + " = " + Task.NO_DUE + " THEN " + Task.LAXITY_NO_DUE + " ELSE " + COL_DUE
+				+ " - CAST(" + COL_WCET + " * (1.0 - " + COL_PROG + ") AS INTEGER) END";
+
+	/**
+	 * Id, priority and laxity key of all tasks ordered by laxity key (index scan)
+	 */
+	public static final String STMT_GET_IDS_BY_LAX = "SELECT " + COL_ID + ", " + COL_PRIO + ", "
+				+ COL_LAX + " FROM " + TABLE_NAME + " ORDER BY " + COL_LAX;
+
+	/**
+	 * Id, priority and laxity key of tasks in any of the categories ordered by laxity key.
+	 * Format argument: comma separated category ids
+	 */
+	public static final String STMT_GET_IDS_BY_LAX_CATEGORIES = "SELECT " + COL_ID + ", "
+				+ COL_PRIO + ", " + COL_LAX + " FROM " + TABLE_NAME + " WHERE " + COL_ID
+				+ " IN (SELECT " + TaskCategoryTable.COL_TID + " FROM "
+				+ TaskCategoryTable.TABLE_NAME + " WHERE " + TaskCategoryTable.COL_CID
+				+ " IN (%s)) ORDER BY " + COL_LAX;
 
 	/** Statement for dropping table */
 	public static final String STMT_DROP = "DROP TABLE IF EXISTS " + TABLE_NAME;
@@ -98,8 +152,22 @@ public final class TaskTable {
 	public static final String STMT_INSERT_TASK = " INSERT into " + TABLE_NAME + "(" + COL_NAME
 				+ ", " + COL_PRIO + ", " + COL_STATE + ", " + COL_PROG + ", " + COL_WCET + ", "
 				+ COL_ACT + ", " + COL_RES + ", " + COL_START + ", " + COL_DUE + ", " + COL_DESC
-				+ ", " + COL_LOC + ", "+ COL_PARENT + ", " + COL_CREA + ", " + COL_LAST
-				+ ") values (?,?,?, ?,?,?,0, ?,?, ?,?,?,strftime('%s','now')*1000,strftime('%s','now')*1000)";
+				+ ", " + COL_LOC + ", "+ COL_PARENT + ", " + COL_LAX + ", " + COL_CREA + ", " + COL_LAST
+				+ ") values (?,?,?, ?,?,?,0, ?,?, ?,?,?,?, ?,?)";
+
+	/**
+	 * Set the modification time of a task whose reminders changed
+	 */
+	public static final String STMT_TOUCH_TASK = " UPDATE " + TABLE_NAME + " SET " + COL_LAST
+				+ "= ? WHERE " + COL_ID + "= ?";
+
+	/**
+	 * Set the modification time of all tasks in a category that is renamed or deleted
+	 */
+	public static final String STMT_TOUCH_TASKS_CATEGORY = " UPDATE " + TABLE_NAME + " SET "
+				+ COL_LAST + "= ? WHERE " + COL_ID + " IN (SELECT " + TaskCategoryTable.COL_TID
+				+ " FROM " + TaskCategoryTable.TABLE_NAME + " WHERE " + TaskCategoryTable.COL_CID
+				+ "= ?)";
 
 	/**
 	 * Update task table with full information from EditForm
@@ -107,6 +175,12 @@ public final class TaskTable {
 	public static final String STMT_UPDATE_TASK = " Update " + TABLE_NAME + " set " + COL_NAME
 				+ "=?, " + COL_PRIO + "=?, " + COL_STATE + "=?, " + COL_PROG + "=?, " + COL_WCET
 				+ "=?, " + COL_ACT + "=?, " + COL_START + "=?, " + COL_DUE + "=?, " + COL_DESC
-				+ "=?, " + COL_LOC + "=?, " + COL_PARENT + "=?, "+ COL_LAST + "= strftime('%s','now')*1000 " + "WHERE "
+				+ "=?, " + COL_LOC + "=?, " + COL_PARENT + "=?, " + COL_LAX + "=?, " + COL_LAST + "=? WHERE "
 				+ COL_ID + "= ?";
+
+	/**
+	 * Delete a task record by id
+	 */
+	public static final String STMT_DELETE_TASK = " DELETE from " + TABLE_NAME + " WHERE " + COL_ID
+				+ "= ?";
 }
@@ -0,0 +1,295 @@
+/******************************************************************************
+ * \filename WriteQueue.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Single writer thread for database accesses of TaskDBService
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.db;
+
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.util.Log;
+import de.ruschival.WhatNext.Task;
+
+/**
+ * @author ruschi
+ *
+ *         Bounded job queue processed by exactly one thread. All jobs run in the order they were
+ *         posted, thus precompiled statements of TaskDBService are only used by this thread.
+ *         Updates for a task that is still waiting in the queue are merged into the waiting job,
+ *         the task is written once with the latest content. Other writes of a task are posted
+ *         with postForTask(), updates after them are no longer merged into an earlier job, thus
+ *         the writes of one task always run in the order they were posted.
+ */
+class WriteQueue {
+	public static final String TAG = WriteQueue.class.getSimpleName();
+
+	/**
+	 * Maximum number of waiting jobs, post() blocks if the queue is full
+	 */
+	public static final int CAPACITY = 256;
+
+	/**
+	 * Callback writing a task record
+	 */
+	interface TaskWriter {
+		void write(Task task);
+	}
+
+	/**
+	 * Waiting jobs
+	 */
+	private final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(CAPACITY);
+
+	/**
+	 * Latest content of tasks with an update job in the queue that later updates may be merged
+	 * into (by task id). Each job holds its slot, content null means cancelled.
+	 */
+	private final HashMap<Long, Task[]> pendingUpdates = new HashMap<Long, Task[]>();
+
+	/**
+	 * Number of updates merged into a waiting job
+	 */
+	private long coalesced = 0;
+
+	/**
+	 * Number of jobs that ended with an exception
+	 */
+	private volatile long failed = 0;
+
+	/**
+	 * Flag to end the writer thread once the queue is empty
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * The writer thread
+	 */
+	private final Thread worker;
+
+	/**
+	 * Constructor, starts the writer thread
+	 */
+	WriteQueue() {
+		this("TaskDBWriter");
+	}
+
+	/**
+	 * Constructor, starts a worker thread with the given name. Also used for a queue of read
+	 * jobs that must not wait behind writes.
+	 *
+	 * @param threadName
+	 */
+	WriteQueue(String threadName) {
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running || !queue.isEmpty()) {
+					Runnable job;
+					try {
+						job = queue.take();
+					} catch (InterruptedException exc) {
+						return;
+					}
+					/* a failing job must not end the only thread serving the queue */
+					try {
+						job.run();
+					} catch (RuntimeException exc) {
+						failed++;
+						onFailure(exc);
+					}
+				}
+			}
+		}, threadName);
+		worker.start();
+	}
+
+	/**
+	 * Called in the worker thread for a posted job that ended with an exception
+	 *
+	 * @param exc
+	 */
+	void onFailure(RuntimeException exc) {
+		Log.e(TAG, "job failed", exc);
+	}
+
+	/**
+	 * Append a job to the queue, blocks while the queue is full. Batches and imports are posted
+	 * as one job and updates of a task are merged, thus the UI thread only waits if CAPACITY
+	 * distinct jobs are waiting. Jobs posted from the writer thread itself are executed
+	 * immediately to avoid a dead lock on a full queue.
+	 *
+	 * @param job
+	 */
+	void post(Runnable job) {
+		if (Thread.currentThread() == worker) {
+			job.run();
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(job);
+				break;
+			} catch (InterruptedException exc) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queue an update of a task. If an update of the same task is still waiting, only its content
+	 * is replaced and no new job is added.
+	 *
+	 * @param task
+	 *            task with valid id
+	 * @param writer
+	 *            callback doing the actual write
+	 */
+	void postUpdate(Task task, final TaskWriter writer) {
+		final Long id = task.id;
+		final Task[] slot;
+		synchronized (pendingUpdates) {
+			Task[] waiting = pendingUpdates.get(id);
+			if (waiting != null) {
+				waiting[0] = task;
+				coalesced++;
+				return;
+			}
+			slot = new Task[] { task };
+			pendingUpdates.put(id, slot);
+		}
+		post(new Runnable() {
+			@Override
+			public void run() {
+				Task latest;
+				synchronized (pendingUpdates) {
+					latest = slot[0];
+					slot[0] = null;
+					if (pendingUpdates.get(id) == slot) {
+						pendingUpdates.remove(id);
+					}
+				}
+				/* cancelled by cancelUpdate() */
+				if (latest == null) {
+					return;
+				}
+				writer.write(latest);
+			}
+		});
+	}
+
+	/**
+	 * Queue a write of a single task that is not a full update, e.g. a change of progress. A
+	 * waiting update of the task still runs before, later updates are queued after the job.
+	 *
+	 * @param id
+	 *            task id
+	 * @param job
+	 */
+	void postForTask(long id, Runnable job) {
+		synchronized (pendingUpdates) {
+			pendingUpdates.remove(id);
+		}
+		post(job);
+	}
+
+	/**
+	 * Forget a waiting update, e.g. because the task is about to be deleted
+	 *
+	 * @param id
+	 *            task id
+	 */
+	void cancelUpdate(long id) {
+		synchronized (pendingUpdates) {
+			Task[] slot = pendingUpdates.remove(id);
+			if (slot != null) {
+				slot[0] = null;
+			}
+		}
+	}
+
+	/**
+	 * Queue a job and wait until it has been executed. All jobs posted before will have finished.
+	 * A RuntimeException of the job is thrown again in the caller thread.
+	 *
+	 * @param job
+	 */
+	void postAndWait(final Runnable job) {
+		if (Thread.currentThread() == worker) {
+			job.run();
+			return;
+		}
+		final Object done = new Object();
+		final boolean[] finished = new boolean[] { false };
+		final RuntimeException[] failure = new RuntimeException[1];
+		post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					job.run();
+				} catch (RuntimeException exc) {
+					failure[0] = exc;
+				} finally {
+					synchronized (done) {
+						finished[0] = true;
+						done.notifyAll();
+					}
+				}
+			}
+		});
+		boolean interrupted = false;
+		synchronized (done) {
+			while (!finished[0]) {
+				try {
+					done.wait();
+				} catch (InterruptedException exc) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+
+	/**
+	 * Let the writer thread finish all waiting jobs and end
+	 */
+	void shutdown() {
+		running = false;
+		/* wake up the writer if it is waiting on an empty queue */
+		post(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+	}
+
+	/**
+	 * @return number of jobs that ended with an exception
+	 */
+	long getFailedCount() {
+		return failed;
+	}
+
+	/**
+	 * @return number of updates merged into waiting jobs
+	 */
+	long getCoalescedCount() {
+		synchronized (pendingUpdates) {
+			return coalesced;
+		}
+	}
+}
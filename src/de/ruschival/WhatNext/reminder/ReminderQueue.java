@@ -0,0 +1,217 @@
+/******************************************************************************
+ * \filename ReminderQueue.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief In-memory schedule of reminders ordered by fire time
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.reminder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import de.ruschival.WhatNext.Reminder;
+
+/**
+ * @author ruschi
+ *
+ *         Indexed binary min-heap of reminders keyed by fire time. The position of each reminder
+ *         in the heap is tracked by its id, thus scheduling, moving and cancelling a single
+ *         reminder cost O(log n) and the next fire time is available in O(1). Not thread safe,
+ *         callers synchronize on the queue.
+ */
+class ReminderQueue {
+	/**
+	 * Initial capacity of the heap arrays
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Fire times in heap order
+	 */
+	private long[] times = new long[INITIAL_CAPACITY];
+
+	/**
+	 * Reminders in heap order, items[i] fires at times[i]
+	 */
+	private Reminder[] items = new Reminder[INITIAL_CAPACITY];
+
+	/**
+	 * Number of reminders in heap
+	 */
+	private int size = 0;
+
+	/**
+	 * Heap position by reminder id
+	 */
+	private final HashMap<Long, Integer> positions = new HashMap<Long, Integer>();
+
+	/**
+	 * Add a reminder or move it to a new fire time if already queued
+	 *
+	 * @param reminder
+	 *            reminder with valid id
+	 * @param fireAt
+	 *            time in ms since epoch
+	 */
+	void schedule(Reminder reminder, long fireAt) {
+		Integer pos = positions.get(reminder.getId());
+		if (pos != null) {
+			items[pos] = reminder;
+			reschedule(pos, fireAt);
+			return;
+		}
+		if (size == times.length) {
+			grow();
+		}
+		times[size] = fireAt;
+		items[size] = reminder;
+		positions.put(reminder.getId(), size);
+		siftUp(size++);
+	}
+
+	/**
+	 * Remove a reminder from the schedule
+	 *
+	 * @param reminderID
+	 * @return true if the reminder was queued
+	 */
+	boolean cancel(long reminderID) {
+		Integer pos = positions.get(reminderID);
+		if (pos == null) {
+			return false;
+		}
+		removeAt(pos);
+		return true;
+	}
+
+	/**
+	 * @return earliest fire time in ms or 0 if the queue is empty
+	 */
+	long peekTime() {
+		return size == 0 ? 0L : times[0];
+	}
+
+	/**
+	 * Remove all reminders due at the given time, earliest first
+	 *
+	 * @param now
+	 *            time in ms since epoch
+	 * @return batch of due reminders, empty if none
+	 */
+	ArrayList<Reminder> pollDue(long now) {
+		ArrayList<Reminder> due = new ArrayList<Reminder>();
+		while (size > 0 && times[0] <= now) {
+			due.add(items[0]);
+			removeAt(0);
+		}
+		return due;
+	}
+
+	/**
+	 * Drop all reminders
+	 */
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			items[i] = null;
+		}
+		size = 0;
+		positions.clear();
+	}
+
+	/**
+	 * @return number of queued reminders
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Change key of element at pos and restore heap order
+	 */
+	private void reschedule(int pos, long fireAt) {
+		long old = times[pos];
+		times[pos] = fireAt;
+		if (fireAt < old) {
+			siftUp(pos);
+		} else {
+			siftDown(pos);
+		}
+	}
+
+	/**
+	 * Replace element at pos by the last one and restore heap order
+	 */
+	private void removeAt(int pos) {
+		positions.remove(items[pos].getId());
+		size--;
+		if (pos != size) {
+			move(size, pos);
+			items[size] = null;
+			if (pos > 0 && times[pos] < times[(pos - 1) / 2]) {
+				siftUp(pos);
+			} else {
+				siftDown(pos);
+			}
+		} else {
+			items[size] = null;
+		}
+	}
+
+	private void siftUp(int pos) {
+		long time = times[pos];
+		Reminder item = items[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) / 2;
+			if (times[parent] <= time) {
+				break;
+			}
+			move(parent, pos);
+			pos = parent;
+		}
+		times[pos] = time;
+		items[pos] = item;
+		positions.put(item.getId(), pos);
+	}
+
+	private void siftDown(int pos) {
+		long time = times[pos];
+		Reminder item = items[pos];
+		int half = size / 2;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			if (child + 1 < size && times[child + 1] < times[child]) {
+				child++;
+			}
+			if (time <= times[child]) {
+				break;
+			}
+			move(child, pos);
+			pos = child;
+		}
+		times[pos] = time;
+		items[pos] = item;
+		positions.put(item.getId(), pos);
+	}
+
+	/**
+	 * Copy element from one slot to another and update its position
+	 */
+	private void move(int from, int to) {
+		times[to] = times[from];
+		items[to] = items[from];
+		positions.put(items[to].getId(), to);
+	}
+
+	private void grow() {
+		int capacity = times.length * 2;
+		long[] newTimes = new long[capacity];
+		Reminder[] newItems = new Reminder[capacity];
+		System.arraycopy(times, 0, newTimes, 0, size);
+		System.arraycopy(items, 0, newItems, 0, size);
+		times = newTimes;
+		items = newItems;
+	}
+}
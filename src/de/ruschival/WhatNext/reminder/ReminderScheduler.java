@@ -0,0 +1,118 @@
+/******************************************************************************
+ * \filename ReminderScheduler.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Decides which reminders are due and when the alarm fires next
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.reminder;
+
+import java.util.ArrayList;
+
+import de.ruschival.WhatNext.Reminder;
+
+/**
+ * @author ruschi
+ *
+ *         Alarm logic of ReminderService without Android dependencies. Upcoming reminders of the
+ *         next HORIZON ms are held in a ReminderQueue, the source is only read after data
+ *         changes or when the loaded time span has passed. The caller persists the time of the
+ *         last check and passes the current time, thus the logic runs with any clock. Thread
+ *         safe.
+ */
+class ReminderScheduler {
+	/**
+	 * Source of scheduled reminders, i.e. the database
+	 */
+	interface Source {
+		/**
+		 * @return reminders of open tasks with fire time in (after, until]
+		 */
+		ArrayList<Reminder> getPendingReminders(long after, long until);
+
+		/**
+		 * @return earliest fire time after the given time or 0 if none
+		 */
+		long getNextReminderTime(long after);
+	}
+
+	/**
+	 * Time span in ms of upcoming reminders held in memory
+	 */
+	static final long HORIZON = 60 * 60 * 1000;
+
+	/**
+	 * Upcoming reminders with fire time up to loadedUntil, ordered by fire time
+	 */
+	private final ReminderQueue queue = new ReminderQueue();
+
+	/**
+	 * Reminders not yet loaded into queue
+	 */
+	private final Source source;
+
+	/**
+	 * End of the time span loaded into queue (ms since epoch)
+	 */
+	private long loadedUntil = 0;
+
+	/**
+	 * Flag to reload queue from source on next check
+	 */
+	private volatile boolean reloadPending = true;
+
+	/**
+	 * Constructor
+	 *
+	 * @param source
+	 */
+	ReminderScheduler(Source source) {
+		this.source = source;
+	}
+
+	/**
+	 * Reload the queue on the next check because tasks or reminders changed, does not wait for
+	 * a running check
+	 */
+	void dataChanged() {
+		reloadPending = true;
+	}
+
+	/**
+	 * Collect all reminders that became due since the last check and find the time of the next
+	 * alarm. A lastCheck after now means the clock was set back, then reminders of the look back
+	 * window are due again.
+	 *
+	 * @param now
+	 *            current time in ms
+	 * @param lastCheck
+	 *            time in ms of the previous check, now - lookBack on the very first run
+	 * @param lookBack
+	 *            window in ms checked if the clock was set back
+	 * @param due
+	 *            receives the due reminders, earliest first
+	 * @return time in ms for the next alarm or 0 if no reminder is pending
+	 */
+	synchronized long check(long now, long lastCheck, long lookBack, ArrayList<Reminder> due) {
+		if (lastCheck > now) {
+			lastCheck = now - lookBack;
+			reloadPending = true;
+		}
+		if (reloadPending || now >= loadedUntil) {
+			reloadPending = false;
+			queue.clear();
+			for (Reminder rem : source.getPendingReminders(lastCheck, now + HORIZON)) {
+				queue.schedule(rem, rem.fireAt);
+			}
+			loadedUntil = now + HORIZON;
+		}
+		due.addAll(queue.pollDue(now));
+		long next = queue.peekTime();
+		if (next == 0) {
+			next = source.getNextReminderTime(loadedUntil);
+		}
+		return next;
+	}
+}
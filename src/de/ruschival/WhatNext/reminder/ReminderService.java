@@ -2,7 +2,7 @@
  * \filename ReminderService.java
  * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
  * 
- * \brief Service refreshed periodically, will setup AlarmManager for next event
+ * \brief Service started on alarms and data changes, will setup AlarmManager for next event
  * 
  * Originally created on Dec 1, 2011 by Thomas Ruschival 
  *-----------------------------------------------------------------------------
@@ -24,8 +24,9 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.IBinder;
-import android.os.SystemClock;
 import de.ruschival.WhatNext.R;
 import de.ruschival.WhatNext.Reminder;
 import de.ruschival.WhatNext.Task;
@@ -48,10 +49,40 @@ public class ReminderService extends Service {
 	private PendingIntent reminderIntent;
 
 	/**
-	 * Period between database polls in ms
+	 * Look back window in ms for the very first run when no check was recorded yet
 	 */
 	public static final int updatePeriod = 55 * 1000;
 
+	/**
+	 * Preferences file to persist the time of the last check across restarts
+	 */
+	private static final String PREFS_NAME = "ReminderService";
+
+	/**
+	 * Key for the time of the last check in ms
+	 */
+	private static final String PREF_LAST_CHECK = "lastCheck";
+
+	/**
+	 * Boolean intent extra set by TaskDBService when tasks or reminders changed
+	 */
+	public static final String EXTRA_DATA_CHANGED = "de.ruschival.WhatNext.reminder.DATA_CHANGED";
+
+	/**
+	 * Due reminders and time of the next alarm, reads the database through taskDBbinder
+	 */
+	private final ReminderScheduler scheduler = new ReminderScheduler(new ReminderScheduler.Source() {
+		@Override
+		public ArrayList<Reminder> getPendingReminders(long after, long until) {
+			return taskDBbinder.getPendingReminders(after, until);
+		}
+
+		@Override
+		public long getNextReminderTime(long after) {
+			return taskDBbinder.getNextReminderTime(after);
+		}
+	});
+
 	/**
 	 * Enable / disable Alarms
 	 */
@@ -86,19 +117,50 @@ public class ReminderService extends Service {
 		reminderIntent = PendingIntent.getBroadcast(this, 0, intentToFire, PendingIntent.FLAG_UPDATE_CURRENT);
 	}
 
+	/**
+	 * Notify all reminders that became due since the last check and arm the alarm for the next
+	 * one. Reminders missed while the device was off are notified on the first run after boot.
+	 */
 	protected void updateNotifications() {
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
-				ArrayList<Reminder> reminders = taskDBbinder.getPendingReminders(updatePeriod);
-
-				for (Reminder rem : reminders) {
-					setNotification(rem);
+				synchronized (scheduler) {
+					SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+					long now = System.currentTimeMillis();
+					long lastCheck = prefs.getLong(PREF_LAST_CHECK, now - updatePeriod);
+					ArrayList<Reminder> due = new ArrayList<Reminder>();
+					long next = scheduler.check(now, lastCheck, updatePeriod, due);
+					for (Reminder rem : due) {
+						setNotification(rem);
+					}
+					prefs.edit().putLong(PREF_LAST_CHECK, now).commit();
+					scheduleNext(next);
 				}
 			}
 		}).start();
 	}
 
+	/**
+	 * Set a single wakeup alarm for the next reminder or cancel it if nothing is pending
+	 * 
+	 * @param fireAt
+	 *            time in ms since epoch, 0 if no reminder is pending
+	 */
+	private void scheduleNext(long fireAt) {
+		AlarmManager alarmMgr = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		if (fireAt <= 0) {
+			alarmMgr.cancel(reminderIntent);
+			return;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			/* set() is inexact since KitKat */
+			alarmMgr.setExact(AlarmManager.RTC_WAKEUP, fireAt, reminderIntent);
+		} else {
+			alarmMgr.set(AlarmManager.RTC_WAKEUP, fireAt, reminderIntent);
+		}
+	}
+
 	/**
 	 * 
 	 * 
@@ -112,12 +174,10 @@ public class ReminderService extends Service {
 	 */
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		AlarmManager alarmMgr = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		if (intent != null && intent.getBooleanExtra(EXTRA_DATA_CHANGED, false)) {
+			scheduler.dataChanged();
+		}
 		if (alarmsEnable) {
-			int alarmType = AlarmManager.ELAPSED_REALTIME_WAKEUP;
-			long timeToRefresh = SystemClock.elapsedRealtime() + updatePeriod;
-
-			alarmMgr.setInexactRepeating(alarmType, timeToRefresh, updatePeriod, reminderIntent);
 			if (taskDBbinder == null || !taskDBbinder.isBinderAlive()) {
 				Intent dbConnectionIntent = new Intent(this, TaskDBService.class);
 				bindService(dbConnectionIntent, serviceConnection, Context.BIND_AUTO_CREATE);
@@ -125,6 +185,7 @@ public class ReminderService extends Service {
 				updateNotifications();
 			}
 		} else {
+			AlarmManager alarmMgr = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
 			alarmMgr.cancel(reminderIntent);
 		}
 		return Service.START_NOT_STICKY;
@@ -260,8 +260,8 @@ public class TaskEditActivity extends Activity {
 		public void onDateSet(DatePicker view, int year, int month, int day) {
 			Calendar start = task.getStart();
 			start.set(year, month, day);
-			startDateField.setText(DateFormat.format("dd/MM/yyyy",
-					task.getStart()));
+			task.setStart(start);
+			startDateField.setText(DateFormat.format("dd/MM/yyyy", start));
 			hideSoftKeyboard();
 		}
 	};
@@ -271,7 +271,8 @@ public class TaskEditActivity extends Activity {
 			Calendar start = task.getStart();
 			start.set(Calendar.HOUR_OF_DAY, hour);
 			start.set(Calendar.MINUTE, minute);
-			startTimeField.setText(DateFormat.format("kk:mm", task.getStart()));
+			task.setStart(start);
+			startTimeField.setText(DateFormat.format("kk:mm", start));
 			hideSoftKeyboard();
 		}
 	};
@@ -281,8 +282,8 @@ public class TaskEditActivity extends Activity {
 			Calendar due = task.getDue();
 			if (due != null) {
 				due.set(year, month, day);
-				dueDateField.setText(DateFormat.format("dd/MM/yyyy",
-						task.getDue()));
+				task.setDueDate(due);
+				dueDateField.setText(DateFormat.format("dd/MM/yyyy", due));
 			}
 			hideSoftKeyboard();
 		}
@@ -294,7 +295,8 @@ public class TaskEditActivity extends Activity {
 			if (due != null) {
 				due.set(Calendar.HOUR_OF_DAY, hour);
 				due.set(Calendar.MINUTE, minute);
-				dueTimeField.setText(DateFormat.format("kk:mm", task.getDue()));
+				task.setDueDate(due);
+				dueTimeField.setText(DateFormat.format("kk:mm", due));
 			}
 			hideSoftKeyboard();
 		}
@@ -384,7 +386,7 @@ public class TaskEditActivity extends Activity {
 				}
 				/* validate start < due */
 				if (dueCheck.isChecked()) {
-					if (task.getStart().after(task.getDue())) {
+					if (task.getStartMs() > task.getDueMs()) {
 						showDialog(INVALID_STARTTIME_DIALOG_ID);
 						return;
 					}
@@ -581,13 +583,12 @@ public class TaskEditActivity extends Activity {
 			dueTimeField.setClickable(true);
 			dueDateField.setEnabled(true);
 			dueDateField.setClickable(true);
-			Calendar due = task.getDue();
-			if (due == null) {
+			if (!task.hasDue()) {
 				task.setDefaultDueDate();
 			}
 			dueDateField
-					.setText(DateFormat.format("dd/MM/yyyy", task.getDue()));
-			dueTimeField.setText(DateFormat.format("kk:mm", task.getDue()));
+					.setText(DateFormat.format("dd/MM/yyyy", task.getDueMs()));
+			dueTimeField.setText(DateFormat.format("kk:mm", task.getDueMs()));
 		} else {
 			dueDateField.setText("-----");
 			dueTimeField.setText("-----");
@@ -612,10 +613,10 @@ public class TaskEditActivity extends Activity {
 		progSeek.setProgress((int) (task.getProgress() * 100.0));
 		/** StartDate */
 		startDateField
-				.setText(DateFormat.format("dd/MM/yyyy", task.getStart()));
-		startTimeField.setText(DateFormat.format("kk:mm", task.getStart()));
+				.setText(DateFormat.format("dd/MM/yyyy", task.getStartMs()));
+		startTimeField.setText(DateFormat.format("kk:mm", task.getStartMs()));
 		/** DueDate */
-		if (task.getDue() != null) {
+		if (task.hasDue()) {
 			dueCheck.setChecked(true);
 		} else {
 			dueCheck.setChecked(false);
@@ -695,32 +696,34 @@ public class TaskEditActivity extends Activity {
 		switch (id) {
 		case START_DATE_DIALOG_ID:
 			if (task != null) {
-				dialog = new DatePickerDialog(this, StartDateSetListener, task
-						.getStart().get(Calendar.YEAR), task.getStart().get(
-						Calendar.MONTH), task.getStart().get(
-						Calendar.DAY_OF_MONTH));
+				Calendar start = task.getStart();
+				dialog = new DatePickerDialog(this, StartDateSetListener,
+						start.get(Calendar.YEAR), start.get(Calendar.MONTH),
+						start.get(Calendar.DAY_OF_MONTH));
 			}
 			break;
 		case START_TIME_DIALOG_ID:
 			if (task != null) {
-				dialog = new TimePickerDialog(this, StartTimeSetListener, task
-						.getStart().get(Calendar.HOUR_OF_DAY), task.getStart()
-						.get(Calendar.MINUTE), true);
+				Calendar start = task.getStart();
+				dialog = new TimePickerDialog(this, StartTimeSetListener,
+						start.get(Calendar.HOUR_OF_DAY),
+						start.get(Calendar.MINUTE), true);
 			}
 			break;
 		case DUE_DATE_DIALOG_ID:
 			if (task != null) {
-				dialog = new DatePickerDialog(this, DueDateSetListener, task
-						.getDue().get(Calendar.YEAR), task.getDue().get(
-						Calendar.MONTH), task.getDue().get(
-						Calendar.DAY_OF_MONTH));
+				Calendar due = task.getDue();
+				dialog = new DatePickerDialog(this, DueDateSetListener,
+						due.get(Calendar.YEAR), due.get(Calendar.MONTH),
+						due.get(Calendar.DAY_OF_MONTH));
 			}
 			break;
 		case DUE_TIME_DIALOG_ID:
 			if (task != null) {
-				dialog = new TimePickerDialog(this, DueTimeSetListener, task
-						.getDue().get(Calendar.HOUR_OF_DAY), task.getDue().get(
-						Calendar.MINUTE), true);
+				Calendar due = task.getDue();
+				dialog = new TimePickerDialog(this, DueTimeSetListener,
+						due.get(Calendar.HOUR_OF_DAY),
+						due.get(Calendar.MINUTE), true);
 			}
 			break;
 		case INVALID_STARTTIME_DIALOG_ID:
@@ -11,10 +11,15 @@
 package de.ruschival.WhatNext.ui;
 
 import java.io.File;
+import java.io.BufferedWriter;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 import android.app.Activity;
@@ -29,6 +34,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.text.format.DateFormat;
+import android.util.Log;
 import android.util.SparseBooleanArray;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -51,7 +57,6 @@ import android.widget.TextView;
 import android.widget.Toast;
 import de.ruschival.WhatNext.Category;
 import de.ruschival.WhatNext.IntentConstants;
-import de.ruschival.WhatNext.LeastLaxityScheduler;
 import de.ruschival.WhatNext.ListRunnable;
 import de.ruschival.WhatNext.R;
 import de.ruschival.WhatNext.Task;
@@ -77,6 +82,11 @@ public class TaskListActivity extends Activity implements IntentConstants {
 	/** RequestCode for TaskEditActivity */
 	public static final int TASK_EDIT_REQ = 0x2000;
 
+	/** File name for export of all tasks */
+	public static final String EXPORT_FILE_NAME = "WhatNext" + IvcalFieldTags.FILE_EXTENSION;
+	/** Buffer size in chars for export of all tasks */
+	public static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
 	/** Category Selection Dialog */
 	private CategorySelectionDialog categoryDialog;
 
@@ -157,23 +167,90 @@ public class TaskListActivity extends Activity implements IntentConstants {
 			/** update Category List */
 			taskDBbinder.getCategoryList(categoryDialog.uiThreadHandler, categoryDialog.uiListRunnable);
 			/** update Task List */
-			taskDBbinder.getTaskList(uiThreadHandler, uiListRunnable);
+			taskDBbinder.getTaskIDList(uiThreadHandler, uiListRunnable);
 
 		}
 	};
 
+	/**
+	 * Adapter on the task ids in scheduling order, tasks are loaded in the
+	 * background for a window around the requested position. The window only
+	 * bounds what the adapter holds: while the task cache of TaskDBService is
+	 * filled all tasks stay in memory anyway, the gain applies to a cold
+	 * cache.
+	 */
 	public class TaskListAdapter extends ArrayAdapter<Task> {
 		/**
-		 * Temporary filtered subset of all tasks
+		 * Number of tasks built at once around the requested position
+		 */
+		public static final int WINDOW_SIZE = 40;
+
+		/**
+		 * Number of tasks before the requested position included in a window
+		 * (scrolling up)
 		 */
-		private List<Task> filteredList;
+		public static final int PREFETCH = 10;
+
+		/**
+		 * Ids of the temporary filtered subset of all tasks, null if not
+		 * filtered
+		 */
+		private ArrayList<Long> filteredIDs;
 		private Object filteredListLock = new Object();
 		/**
-		 * Internal container since we override List
+		 * Ids of all tasks in scheduling order, the tasks are built on demand
 		 */
-		private List<Task> fullList;
+		private ArrayList<Long> fullIDs;
 		private Object fullListLock = new Object();
 
+		/**
+		 * Tasks of the window around the last requested position by id
+		 */
+		private final HashMap<Long, Task> window = new HashMap<Long, Task>(WINDOW_SIZE * 2);
+
+		/**
+		 * Ids of the window being loaded, null if none. Guarded by window
+		 */
+		private List<Long> pendingIDs;
+
+		/**
+		 * Incremented whenever the window is cleared, loads requested before
+		 * are dropped. Guarded by window
+		 */
+		private int windowGeneration = 0;
+
+		/**
+		 * Receives a loaded window in the UI thread
+		 */
+		private class WindowLoadRunnable extends ListRunnable<Task> {
+			private final int generation;
+
+			WindowLoadRunnable(int generation) {
+				this.generation = generation;
+			}
+
+			@Override
+			public void run() {
+				synchronized (window) {
+					if (generation != windowGeneration) {
+						return;
+					}
+					window.clear();
+					for (Task loaded : content) {
+						window.put(loaded.id, loaded);
+					}
+					pendingIDs = null;
+				}
+				notifyDataSetChanged();
+			}
+		}
+
+		/**
+		 * Positions in fullIDs by category id, null if it has to be rebuilt.
+		 * Guarded by fullListLock
+		 */
+		private HashMap<Long, BitSet> categoryIndex;
+
 		/**
 		 * Test Filter for States
 		 */
@@ -197,28 +274,29 @@ public class TaskListActivity extends Activity implements IntentConstants {
 			protected FilterResults performFiltering(CharSequence filterString) {
 				FilterResults results = new FilterResults();
 				if (filterString == null) {
-					List<Task> list = fullList;
-					results.values = list;
-					results.count = list.size();
+					results.values = null;
+					results.count = getFullCount();
 				} else {
-					final List<Task> values = fullList;
-					final int count = values.size();
-					final List<Task> newValues = new ArrayList<Task>(count);
-					/** iterate over task set */
-					for (Task task : values) {
-						/** iterate over categoryFilter */
+					ArrayList<Long> newValues = new ArrayList<Long>();
+					synchronized (fullListLock) {
+						if (categoryIndex == null) {
+							categoryIndex = taskDBbinder.getCategoryIndex(fullIDs);
+						}
+						/** union of positions of all categories */
+						BitSet selected = new BitSet(fullIDs.size());
 						for (Category cat : categoryFilter) {
-							/** if task is already in newValues we can skip this */
-							if (!newValues.contains(task) && task.getCategories().containsKey(cat.id)) {
-								/**
-								 * add the task if the category is within task's
-								 * category list
-								 */
-								newValues.add(task);
+							BitSet bits = categoryIndex.get(cat.id);
+							if (bits != null) {
+								selected.or(bits);
 							}
 						}
+						/** positions ascending, thus already in scheduling order */
+						int pos = selected.nextSetBit(0);
+						while (pos >= 0) {
+							newValues.add(fullIDs.get(pos));
+							pos = selected.nextSetBit(pos + 1);
+						}
 					}
-					Collections.sort(newValues, new LeastLaxityScheduler());
 					results.values = newValues;
 					results.count = newValues.size();
 				}
@@ -229,8 +307,9 @@ public class TaskListActivity extends Activity implements IntentConstants {
 			@Override
 			protected void publishResults(CharSequence prefix, FilterResults results) {
 				synchronized (filteredListLock) {
-					filteredList = (List<Task>) results.values;
+					filteredIDs = (ArrayList<Long>) results.values;
 				}
+				clearWindow();
 				// Let the adapter know about the updated list
 				if (results.count > 0) {
 					notifyDataSetChanged();
@@ -245,7 +324,7 @@ public class TaskListActivity extends Activity implements IntentConstants {
 		 */
 		public TaskListAdapter(Context ctx, int resId, int size) {
 			super(ctx, resId);
-			this.fullList = new ArrayList<Task>(size);
+			this.fullIDs = new ArrayList<Long>(size);
 		}
 
 		/**
@@ -257,40 +336,34 @@ public class TaskListActivity extends Activity implements IntentConstants {
 		}
 
 		/**
-		 * Adds the specified object at the end of the array. NOTE: Override all
-		 * methods that operate on underlying collection since we implement our
-		 * own
+		 * Replace the list by ids of tasks in scheduling order. NOTE: Override
+		 * all methods that operate on underlying collection since we implement
+		 * our own
 		 * 
-		 * @param task
-		 *            The task to add at the end of the array.
+		 * @param taskIDs
+		 *            ids of all tasks, sorted
 		 */
-		@Override
-		public void add(Task task) {
+		public void setTaskIDs(ArrayList<Long> taskIDs) {
 			synchronized (fullListLock) {
-				fullList.add(task);
+				fullIDs = taskIDs;
+				categoryIndex = null;
 			}
+			clearWindow();
 			if (mNotifyOnChange)
 				notifyDataSetChanged();
 		}
 
 		/**
-		 * Adds all tasks to the local list NOTE: Override all methods that
-		 * operate on underlying collection since we implement our own
+		 * Adds the specified object at the end of the array. NOTE: Override all
+		 * methods that operate on underlying collection since we implement our
+		 * own
 		 * 
-		 * @param taskList
-		 *            list of tasks to add
+		 * @param task
+		 *            The task to add at the end of the array.
 		 */
-		public void addAll(List<Task> taskList) {
-			synchronized (fullListLock) {
-				boolean tmp = mNotifyOnChange;
-				mNotifyOnChange = false;
-				for (Task task : taskList) {
-					fullList.add(task);
-				}
-				mNotifyOnChange = tmp;
-			}
-			if (mNotifyOnChange)
-				notifyDataSetChanged();
+		@Override
+		public void add(Task task) {
+			insert(task, getFullCount());
 		}
 
 		/**
@@ -307,7 +380,11 @@ public class TaskListActivity extends Activity implements IntentConstants {
 		@Override
 		public void insert(Task task, int index) {
 			synchronized (fullListLock) {
-				fullList.add(index, task);
+				fullIDs.add(index, task.id);
+				categoryIndex = null;
+			}
+			synchronized (window) {
+				window.put(task.id, task);
 			}
 			if (mNotifyOnChange)
 				notifyDataSetChanged();
@@ -324,13 +401,17 @@ public class TaskListActivity extends Activity implements IntentConstants {
 		@Override
 		public void remove(Task task) {
 			synchronized (fullListLock) {
-				fullList.remove(task);
+				fullIDs.remove(task.id);
+				categoryIndex = null;
 			}
 			synchronized (filteredListLock) {
-				if (filteredList != null) {
-					filteredList.remove(task);
+				if (filteredIDs != null) {
+					filteredIDs.remove(task.id);
 				}
 			}
+			synchronized (window) {
+				window.remove(task.id);
+			}
 			if (mNotifyOnChange)
 				notifyDataSetChanged();
 		}
@@ -342,36 +423,91 @@ public class TaskListActivity extends Activity implements IntentConstants {
 		@Override
 		public void clear() {
 			synchronized (fullListLock) {
-				fullList.clear();
+				fullIDs.clear();
+				categoryIndex = null;
 			}
 			synchronized (filteredListLock) {
-				filteredList = null;
+				filteredIDs = null;
 			}
+			clearWindow();
 			if (mNotifyOnChange)
 				notifyDataSetChanged();
 		}
 
 		/**
-		 * Get Task-item at position NOTE: Override all methods that operate on
+		 * Drop the window and loads still running
+		 */
+		private void clearWindow() {
+			synchronized (window) {
+				window.clear();
+				pendingIDs = null;
+				windowGeneration++;
+			}
+		}
+
+		/**
+		 * Get Task-item at position, queues loading the window around position
+		 * if the task is not in the current window. The list is notified once
+		 * the window arrived. NOTE: Override all methods that operate on
 		 * underlying collection since we implement our own
 		 * 
 		 * @param index
 		 *            position of item in arraylist
-		 * @return task Task
+		 * @return task Task (null if it is being loaded or has been deleted
+		 *         meanwhile)
 		 */
 		@Override
 		public Task getItem(int index) {
-			Task result;
+			Long id;
+			List<Long> windowIDs;
 			synchronized (filteredListLock) {
-				if (filteredList != null) {
-					result = filteredList.get(index);
-				} else {
+				List<Long> ids = filteredIDs;
+				if (ids == null) {
 					synchronized (fullListLock) {
-						result = fullList.get(index);
+						ids = fullIDs;
 					}
 				}
+				id = ids.get(index);
+				int from = Math.max(0, index - PREFETCH);
+				int to = Math.min(ids.size(), from + WINDOW_SIZE);
+				windowIDs = new ArrayList<Long>(ids.subList(from, to));
+			}
+			synchronized (window) {
+				Task task = window.get(id);
+				if (task == null && (pendingIDs == null || !pendingIDs.contains(id))) {
+					pendingIDs = windowIDs;
+					taskDBbinder.getTasksByID(windowIDs, uiThreadHandler, new WindowLoadRunnable(
+					        windowGeneration));
+				}
+				return task;
+			}
+		}
+
+		/**
+		 * Id of the task at position, available before the task is loaded
+		 * 
+		 * @param index
+		 *            position of item in arraylist
+		 * @return task id
+		 */
+		@Override
+		public long getItemId(int index) {
+			synchronized (filteredListLock) {
+				if (filteredIDs != null) {
+					return filteredIDs.get(index);
+				}
+				synchronized (fullListLock) {
+					return fullIDs.get(index);
+				}
 			}
-			return result;
+		}
+
+		/**
+		 * @return true, item ids are task ids
+		 */
+		@Override
+		public boolean hasStableIds() {
+			return true;
 		}
 
 		/**
@@ -386,11 +522,11 @@ public class TaskListActivity extends Activity implements IntentConstants {
 		public int getPosition(Task task) {
 			int pos = 0;
 			synchronized (filteredListLock) {
-				if (filteredList != null) {
-					pos = filteredList.indexOf(task);
+				if (filteredIDs != null) {
+					pos = filteredIDs.indexOf(task.id);
 				} else {
 					synchronized (fullListLock) {
-						pos = fullList.indexOf(task);
+						pos = fullIDs.indexOf(task.id);
 					}
 				}
 			}
@@ -408,17 +544,24 @@ public class TaskListActivity extends Activity implements IntentConstants {
 		public int getCount() {
 			int retval = 0;
 			synchronized (filteredListLock) {
-				if (filteredList != null) {
-					retval = filteredList.size();
+				if (filteredIDs != null) {
+					retval = filteredIDs.size();
 				} else {
-					synchronized (fullListLock) {
-						retval = fullList.size();
-					}
+					retval = getFullCount();
 				}
 			}
 			return retval;
 		}
 
+		/**
+		 * @return number of all tasks regardless of filter
+		 */
+		private int getFullCount() {
+			synchronized (fullListLock) {
+				return fullIDs.size();
+			}
+		}
+
 		/**
 		 * Render view of a list item, called by framework
 		 */
@@ -451,17 +594,25 @@ public class TaskListActivity extends Activity implements IntentConstants {
 			}
 			/** Get the task and its state for this listItem */
 			Task task = getItem(position);
+			if (task == null) {
+				/* being loaded or deleted meanwhile, list will be updated */
+				viewProxy.taskname.setText("");
+				viewProxy.due.setText("");
+				viewProxy.progress.setText("");
+				viewProxy.slack.setText("");
+				return rowView;
+			}
 			Task.State state = task.getState();
 
 			/** values */
 			viewProxy.taskname.setText(task.name);
-			if (task.getDue() != null) {
-				long delta = task.getDue().getTimeInMillis() - System.currentTimeMillis();
+			if (task.hasDue()) {
+				long delta = task.getDueMs() - System.currentTimeMillis();
 				// TODO: only show time for "today"
 				if (Math.abs(delta) >= TimeConversion.MS_TO_DAY / 2) {
-					viewProxy.due.setText(DateFormat.format("dd.MM", task.getDue()));
+					viewProxy.due.setText(DateFormat.format("dd.MM", task.getDueMs()));
 				} else {
-					viewProxy.due.setText(DateFormat.format("kk:mm", task.getDue()));
+					viewProxy.due.setText(DateFormat.format("kk:mm", task.getDueMs()));
 				}
 			} else {
 				viewProxy.due.setText("----");
@@ -471,8 +622,8 @@ public class TaskListActivity extends Activity implements IntentConstants {
 			viewProxy.progress.setText(String.format("%d", prog));
 
 			/** Slack only for incomplete tasks with due date */
-			if (state != Task.State.DONE && task.getDue() != null) {
-				long slackTime = task.getLaxity(Calendar.getInstance().getTimeInMillis());
+			if (state != Task.State.DONE && task.hasDue()) {
+				long slackTime = task.getLaxity(System.currentTimeMillis());
 				int remainingWork = task.getRemainingWork();
 				if (slackTime < (0.5 * remainingWork)) {
 					viewProxy.slack.setTextColor(appctx.getResources().getColor(R.color.orange));
@@ -555,18 +706,11 @@ public class TaskListActivity extends Activity implements IntentConstants {
 		}
 
 		/**
-		 * Sort the task set according to scheduler rules
+		 * Sort the task set according to scheduler rules, the ids are
+		 * retrieved again in the background
 		 */
 		public void reschedule() {
-			if (filteredList != null) {
-				synchronized (filteredListLock) {
-					Collections.sort(filteredList, new LeastLaxityScheduler());
-				}
-			} else {
-				synchronized (fullListLock) {
-					Collections.sort(fullList, new LeastLaxityScheduler());
-				}
-			}
+			taskDBbinder.getTaskIDList(uiThreadHandler, uiListRunnable);
 		}
 
 		/**
@@ -608,12 +752,11 @@ public class TaskListActivity extends Activity implements IntentConstants {
 	 * 
 	 * @author ruschi
 	 */
-	public class TaskListUpdateRunnable extends ListRunnable<Task> {
+	public class TaskListUpdateRunnable extends ListRunnable<Long> {
 		@Override
 		public void run() {
 			listadapter.setNotifyOnChange(false);
-			listadapter.clear();
-			listadapter.addAll(content);
+			listadapter.setTaskIDs(content);
 			updateCategories();
 			checkLaxity();
 			listadapter.setNotifyOnChange(true);
@@ -635,8 +778,8 @@ public class TaskListActivity extends Activity implements IntentConstants {
 			@Override
 			public void onItemClick(AdapterView<?> adapter, View clickedView, int position, long id) {
 				Intent intent = new Intent(TaskListActivity.this, TaskShowActivity.class);
-				long taskid = listadapter.getItem(position).id;
-				intent.putExtra(Task.INTENT_EXTRA_TASKID, taskid);
+				/* the task may still be loading, the item id is its id */
+				intent.putExtra(Task.INTENT_EXTRA_TASKID, id);
 				startActivityForResult(intent, ITC_EDIT_TASK);
 			}
 
@@ -783,6 +926,9 @@ public class TaskListActivity extends Activity implements IntentConstants {
 			Intent intent = new Intent(TaskListActivity.this, TaskEditActivity.class);
 			startActivityForResult(intent, ITC_NEW_TASK);
 			return true;
+		case R.id.opti_share_all:
+			shareAllTasks();
+			return true;
 			// case R.id.menu_i_share:
 
 			// return true;
@@ -791,6 +937,47 @@ public class TaskListActivity extends Activity implements IntentConstants {
 		}
 	}
 
+	/**
+	 * Export all tasks to one iCalendar file in a background thread and offer
+	 * it to other apps
+	 */
+	private void shareAllTasks() {
+		final File file = new File(getExternalFilesDir(null), EXPORT_FILE_NAME);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				boolean written = false;
+				try {
+					Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+							"UTF-8"), EXPORT_BUFFER_SIZE);
+					try {
+						taskDBbinder.exportTasks(writer);
+						written = true;
+					} finally {
+						writer.close();
+					}
+				} catch (IOException exc) {
+					Log.e(TAG, "export of all tasks failed", exc);
+					written = false;
+				}
+				final boolean success = written;
+				uiThreadHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (success) {
+							Intent intent = new Intent(Intent.ACTION_SEND);
+							intent.setType(IvcalFieldTags.MIME_TYPE);
+							intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+							startActivity(Intent.createChooser(intent, getString(R.string.sa_share)));
+						} else {
+							Toast.makeText(TaskListActivity.this, R.string.err_export, Toast.LENGTH_SHORT).show();
+						}
+					}
+				});
+			}
+		}).start();
+	}
+
 	@Override
 	public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
 		super.onCreateContextMenu(menu, v, menuInfo);
@@ -864,9 +1051,13 @@ public class TaskListActivity extends Activity implements IntentConstants {
 				File file = new File(getExternalFilesDir(null), filename);
 				Uri absoluteFileUri = Uri.fromFile(file);
 				try {
-					FileOutputStream fos = new FileOutputStream(file);
-					fos.write(VcalConverter.getTaskiCal(selectedTask).getBytes());
-					fos.close();
+					Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+							"UTF-8"));
+					try {
+						VcalConverter.writeTaskiCal(selectedTask, writer);
+					} finally {
+						writer.close();
+					}
 					intent.putExtra(Intent.EXTRA_STREAM, absoluteFileUri);
 					startActivity(Intent.createChooser(intent, getString(R.string.sa_share)));
 				} catch (Exception exc) {
@@ -892,7 +1083,6 @@ public class TaskListActivity extends Activity implements IntentConstants {
 					if (selectedTask != null) {
 						taskDBbinder.deleteTask(selectedTask);
 						listadapter.remove(selectedTask);
-						listadapter.sort(new LeastLaxityScheduler());
 						selectedTask = null;
 					}
 					dialog.dismiss();
@@ -925,14 +1115,22 @@ public class TaskListActivity extends Activity implements IntentConstants {
 	}
 
 	/**
-	 * Most simple Check if at least topmost item is schedulable
+	 * Most simple Check if at least topmost item is schedulable, the task is
+	 * loaded in the background
 	 */
 	public void checkLaxity() {
 		if (listadapter.getCount() > 0) {
-			Task task = listadapter.getItem(0);
-			if (task.getLaxity(System.currentTimeMillis()) <= 0) {
-				Toast.makeText(this, R.string.err_will_miss_deadline, Toast.LENGTH_SHORT).show();
-			}
+			List<Long> topmost = Collections.singletonList(listadapter.getItemId(0));
+			taskDBbinder.getTasksByID(topmost, uiThreadHandler, new ListRunnable<Task>() {
+				@Override
+				public void run() {
+					if (!content.isEmpty()
+					        && content.get(0).getLaxity(System.currentTimeMillis()) <= 0) {
+						Toast.makeText(TaskListActivity.this, R.string.err_will_miss_deadline,
+						        Toast.LENGTH_SHORT).show();
+					}
+				}
+			});
 		}
 	}
 }
\ No newline at end of file
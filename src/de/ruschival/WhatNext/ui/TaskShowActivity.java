@@ -9,8 +9,11 @@
  ******************************************************************************/
 package de.ruschival.WhatNext.ui;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -306,10 +309,10 @@ public class TaskShowActivity extends Activity {
 		progressField.setText(String.format("%d",
 				(int) (task.getProgress() * 100.0)));
 		startDateTimeField.setText(DateFormat.format("dd/MM/yyyy - kk:mm",
-				task.getStart()));
-		if (task.getDue() != null) {
+				task.getStartMs()));
+		if (task.hasDue()) {
 			dueDateTimeField.setText(DateFormat.format("dd/MM/yyyy - kk:mm",
-					task.getDue()));
+					task.getDueMs()));
 		} else {
 			dueDateTimeField.setText("---");
 		}
@@ -407,9 +410,13 @@ public class TaskShowActivity extends Activity {
 			Uri absoluteFileUri = Uri.fromFile(file);
 
 			try {
-				FileOutputStream fos = new FileOutputStream(file);
-				fos.write(VcalConverter.getTaskiCal(task).getBytes());
-				fos.close();
+				Writer writer = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(file), "UTF-8"));
+				try {
+					VcalConverter.writeTaskiCal(task, writer);
+				} finally {
+					writer.close();
+				}
 				dataIntent.putExtra(Intent.EXTRA_STREAM, absoluteFileUri);
 				startActivity(Intent.createChooser(dataIntent,
 						getString(R.string.sa_share)));
@@ -0,0 +1,70 @@
+/******************************************************************************
+ * \filename LeastLaxitySchedulerTest.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Plain JVM tests of the simulated schedule
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author ruschi
+ *
+ *         LeastLaxityScheduler.plan() with and without free time. The scheduler takes the current
+ *         time as plan time, thus times are checked relative to getPlanTime().
+ */
+public class LeastLaxitySchedulerTest {
+	private static final int HOUR = 60 * 60 * 1000;
+
+	private static Task task(long id, long wcet) {
+		Task task = new Task();
+		task.id = id;
+		task.setWcet(wcet);
+		return task;
+	}
+
+	@Test
+	public void tasksAreWorkedOnOneAfterTheOther() {
+		Task first = task(1, HOUR);
+		Task second = task(2, 2 * HOUR);
+		first.setDue(System.currentTimeMillis() + 3 * HOUR);
+		SchedulePlan plan = new LeastLaxityScheduler().plan(Arrays.asList(second, first),
+				new PeriodicBlock[0]);
+		long t0 = plan.getPlanTime();
+		assertEquals(2, plan.getTaskCount());
+		assertEquals(1L, plan.getTaskId(0));
+		assertEquals(t0 + HOUR, plan.getCompletion(0));
+		assertEquals(t0 + 3 * HOUR, plan.getCompletion(1));
+		assertEquals(SchedulePlan.NO_SLACK_LIMIT, plan.getSlack(1));
+		assertEquals(Long.MAX_VALUE, plan.getFirstMissedDeadline());
+	}
+
+	@Test
+	public void noFreeTimeGivesPlanWithoutCompletion() {
+		Task due = task(1, HOUR);
+		long dueMs = System.currentTimeMillis() + 2 * HOUR;
+		due.setDue(dueMs);
+		Task open = task(2, HOUR);
+		/* unavailable all day, every day */
+		PeriodicBlock[] always = new PeriodicBlock[] {
+				new PeriodicBlock(0, 24 * HOUR, 24 * HOUR, 0) };
+		SchedulePlan plan = new LeastLaxityScheduler().plan(Arrays.asList(due, open), always);
+		assertEquals(2, plan.getTaskCount());
+		assertEquals(0, plan.getSliceCount());
+		assertEquals(1L, plan.getTaskId(0));
+		assertEquals(SchedulePlan.NEVER, plan.getCompletion(0));
+		assertTrue(plan.getSlack(0) < 0);
+		assertEquals(dueMs, plan.getFirstMissedDeadline());
+		assertEquals(SchedulePlan.NEVER, plan.getCompletion(1));
+		assertEquals(SchedulePlan.NO_SLACK_LIMIT, plan.getSlack(1));
+	}
+}
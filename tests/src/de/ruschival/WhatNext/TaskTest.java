@@ -0,0 +1,62 @@
+/******************************************************************************
+ * \filename TaskTest.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Plain JVM tests of task copies
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * @author ruschi
+ *
+ *         Copies of a task accumulating its subtasks must hold its own values, the aggregates are
+ *         computed again from the subtasks of the copy.
+ */
+public class TaskTest {
+	private static final long HOUR = 60 * 60 * 1000;
+
+	/**
+	 * Parent with an own estimate of 1h and a child of 2h
+	 */
+	private static Task accumulatingParent() {
+		Task parent = new Task();
+		parent.id = 1L;
+		parent.setWcet(HOUR);
+		parent.setAccumulateSubtasks(true);
+		Task child = new Task();
+		child.id = 2L;
+		child.setWcet(2 * HOUR);
+		parent.addSubtask(child);
+		assertEquals(3 * HOUR, parent.getWcet());
+		return parent;
+	}
+
+	@Test
+	public void copyConstructorCopiesOwnWcet() {
+		Task copy = new Task(accumulatingParent());
+		assertNull(copy.id);
+		copy.setAccumulateSubtasks(true);
+		assertEquals(HOUR, copy.getWcet());
+	}
+
+	@Test
+	public void detachedCopyCopiesOwnWcet() {
+		Task parent = accumulatingParent();
+		Task copy = parent.detachedCopy();
+		assertEquals(Long.valueOf(1), copy.id);
+		assertEquals(HOUR, copy.getWcet());
+		Task child = new Task();
+		child.id = 3L;
+		child.setWcet(2 * HOUR);
+		copy.addSubtask(child);
+		assertEquals(3 * HOUR, copy.getWcet());
+	}
+}
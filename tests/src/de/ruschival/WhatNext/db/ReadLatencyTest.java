@@ -0,0 +1,150 @@
+/******************************************************************************
+ * \filename ReadLatencyTest.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Latency of cached reads while the writer thread runs a bulk write
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.ruschival.WhatNext.Task;
+
+/**
+ * @author ruschi
+ *
+ *         Reads of the task list are posted while the writer thread is busy with a bulk insert
+ *         that updates the cache after its commit, like TaskDBService.insertTasks(). Reads on the
+ *         reader queue are compared to the same reads queued behind the write. SQLite is not
+ *         available on a plain JVM, the statements are replaced by a fixed time per row.
+ */
+public class ReadLatencyTest {
+	private static final int TASKS = 200;
+
+	private static final int ROWS = 300;
+
+	private static final long MS_PER_ROW = 1;
+
+	private static final int READS = 100;
+
+	private static final long READ_INTERVAL_MS = 2;
+
+	private WriteQueue writeQueue;
+
+	private WriteQueue readQueue;
+
+	private TaskCache cache;
+
+	@Before
+	public void setUp() {
+		writeQueue = new WriteQueue("TestWriter");
+		readQueue = new WriteQueue("TestReader");
+		cache = new TaskCache();
+		ArrayList<Task> initial = new ArrayList<Task>();
+		for (long id = 1; id <= TASKS; id++) {
+			initial.add(task(id));
+		}
+		cache.fill(initial);
+	}
+
+	@After
+	public void tearDown() {
+		readQueue.shutdown();
+		writeQueue.shutdown();
+	}
+
+	private static Task task(long id) {
+		Task task = new Task();
+		task.id = id;
+		return task;
+	}
+
+	/**
+	 * Post a bulk insert of ROWS new tasks to the writer
+	 */
+	private void postBulkInsert() {
+		writeQueue.post(new Runnable() {
+			@Override
+			public void run() {
+				List<Task> rows = new ArrayList<Task>(ROWS);
+				for (long id = 10000; id < 10000 + ROWS; id++) {
+					try {
+						Thread.sleep(MS_PER_ROW);
+					} catch (InterruptedException exc) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					rows.add(task(id));
+				}
+				/* only committed changes reach the cache */
+				for (Task row : rows) {
+					cache.put(row);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Post READS reads of the open tasks to the given queue during a bulk insert
+	 *
+	 * @param queue
+	 * @return sorted latencies in ns from post until the read finished
+	 */
+	private long[] readDuringBulkInsert(WriteQueue queue) throws InterruptedException {
+		final long[] latencies = new long[READS];
+		final CountDownLatch done = new CountDownLatch(READS);
+		postBulkInsert();
+		for (int i = 0; i < READS; i++) {
+			final int index = i;
+			final long posted = System.nanoTime();
+			queue.post(new Runnable() {
+				@Override
+				public void run() {
+					cache.getOpen();
+					latencies[index] = System.nanoTime() - posted;
+					done.countDown();
+				}
+			});
+			Thread.sleep(READ_INTERVAL_MS);
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		return sorted[(sorted.length - 1) * percent / 100];
+	}
+
+	@Test
+	public void readsDoNotWaitForBulkWrite() throws InterruptedException {
+		long[] reader = readDuringBulkInsert(readQueue);
+		writeQueue.postAndWait(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+		assertEquals(TASKS + ROWS, cache.getAll().size());
+		long[] writer = readDuringBulkInsert(writeQueue);
+		/* queued behind the write half of the reads wait for at least a quarter of it */
+		long bulk = TimeUnit.MILLISECONDS.toNanos(ROWS * MS_PER_ROW);
+		assertTrue(percentile(writer, 50) >= bulk / 4);
+		assertTrue("p95 " + percentile(reader, 95) + " ns, p50 behind writer "
+				+ percentile(writer, 50) + " ns",
+				percentile(reader, 95) * 4 < percentile(writer, 50));
+	}
+}
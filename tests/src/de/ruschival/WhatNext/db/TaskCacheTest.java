@@ -0,0 +1,89 @@
+/******************************************************************************
+ * \filename TaskCacheTest.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Plain JVM tests of the task cache
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.ruschival.WhatNext.Task;
+
+/**
+ * @author ruschi
+ *
+ *         Copies handed out by TaskCache and state writes applied to cached tasks. The cache
+ *         holds a tree 1 -> (2, 3) and a single task 4.
+ */
+public class TaskCacheTest {
+	private TaskCache cache;
+
+	private static Task task(long id, long dueMs) {
+		Task task = new Task();
+		task.id = id;
+		task.setDue(dueMs);
+		return task;
+	}
+
+	@Before
+	public void setUp() {
+		long now = System.currentTimeMillis();
+		Task root = task(1, now + 40 * 3600000L);
+		Task first = task(2, now + 20 * 3600000L);
+		Task second = task(3, now + 30 * 3600000L);
+		root.addSubtask(first);
+		root.addSubtask(second);
+		cache = new TaskCache();
+		cache.fill(Arrays.asList(root, first, second, task(4, now + 10 * 3600000L)));
+	}
+
+	@Test
+	public void treeSharedByRequestedTasksIsCopiedOnce() {
+		ArrayList<Task> found = cache.get(Arrays.asList(2L, 5L, 3L));
+		assertEquals(2, found.size());
+		assertEquals(Long.valueOf(2), found.get(0).id);
+		assertEquals(Long.valueOf(3), found.get(1).id);
+		assertSame(found.get(0).getParent(), found.get(1).getParent());
+		assertEquals(Long.valueOf(1), found.get(0).getParent().id);
+		/* a copy, changes do not reach the cache */
+		found.get(0).setProgress(1.0f);
+		assertTrue(cache.get(2).getProgress() < 1.0f);
+	}
+
+	@Test
+	public void sortedIDsFollowLaxity() {
+		assertEquals(Arrays.asList(4L, 2L, 3L, 1L), cache.getSortedIDs(null));
+		assertNull(new TaskCache().getSortedIDs(null));
+	}
+
+	@Test
+	public void putStateChangesOnlyWrittenColumns() {
+		cache.putState(2, null, null, Long.valueOf(1234), Boolean.TRUE);
+		Task task = cache.get(2);
+		assertEquals(1234L, task.resumed);
+		assertTrue(task.isSuspended());
+		assertEquals(0L, task.getActual());
+
+		cache.putState(2, Float.valueOf(1.0f), Long.valueOf(60000), null, Boolean.FALSE);
+		task = cache.get(2);
+		assertEquals(1234L, task.resumed);
+		assertFalse(task.isSuspended());
+		assertEquals(60000L, task.getActual());
+		assertEquals(Long.valueOf(1), task.getParent().id);
+		assertEquals(4, cache.getAll().size());
+	}
+}
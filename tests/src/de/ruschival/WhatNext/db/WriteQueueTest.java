@@ -0,0 +1,221 @@
+/******************************************************************************
+ * \filename WriteQueueTest.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Plain JVM tests of the writer thread queue
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.ruschival.WhatNext.Task;
+
+/**
+ * @author ruschi
+ *
+ *         Coalescing, cancellation and ordering of WriteQueue. The writer thread is held by a
+ *         blocking job while the jobs under test are posted.
+ */
+public class WriteQueueTest {
+	private WriteQueue queue;
+
+	/**
+	 * Tasks or markers in the order the writer thread saw them
+	 */
+	private final List<Object> written = Collections.synchronizedList(new ArrayList<Object>());
+
+	private final WriteQueue.TaskWriter writer = new WriteQueue.TaskWriter() {
+		@Override
+		public void write(Task task) {
+			written.add(task);
+		}
+	};
+
+	/**
+	 * Failures of posted jobs, collected instead of logging them
+	 */
+	private final List<RuntimeException> failures = Collections
+			.synchronizedList(new ArrayList<RuntimeException>());
+
+	@Before
+	public void setUp() {
+		queue = new WriteQueue("TestWriter") {
+			@Override
+			void onFailure(RuntimeException exc) {
+				failures.add(exc);
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		queue.shutdown();
+	}
+
+	private static Task task(long id) {
+		Task task = new Task();
+		task.id = id;
+		return task;
+	}
+
+	/**
+	 * Post a job that keeps the writer busy until the returned latch is released
+	 */
+	private CountDownLatch blockWriter() {
+		final CountDownLatch release = new CountDownLatch(1);
+		queue.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		return release;
+	}
+
+	/**
+	 * Wait until all jobs posted before have run
+	 */
+	private void drain() {
+		queue.postAndWait(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+	}
+
+	@Test
+	public void waitingUpdatesAreMerged() {
+		CountDownLatch release = blockWriter();
+		Task first = task(1);
+		Task second = task(1);
+		Task last = task(1);
+		queue.postUpdate(first, writer);
+		queue.postUpdate(second, writer);
+		queue.postUpdate(last, writer);
+		release.countDown();
+		drain();
+		assertEquals(1, written.size());
+		assertSame(last, written.get(0));
+		assertEquals(2L, queue.getCoalescedCount());
+	}
+
+	@Test
+	public void updatesOfDifferentTasksAreNotMerged() {
+		CountDownLatch release = blockWriter();
+		queue.postUpdate(task(1), writer);
+		queue.postUpdate(task(2), writer);
+		release.countDown();
+		drain();
+		assertEquals(2, written.size());
+		assertEquals(0L, queue.getCoalescedCount());
+	}
+
+	@Test
+	public void cancelledUpdateIsSkipped() {
+		CountDownLatch release = blockWriter();
+		queue.postUpdate(task(1), writer);
+		queue.cancelUpdate(1);
+		Task after = task(1);
+		queue.postUpdate(after, writer);
+		release.countDown();
+		drain();
+		assertEquals(1, written.size());
+		assertSame(after, written.get(0));
+		assertEquals(0L, queue.getFailedCount());
+	}
+
+	@Test
+	public void updateAfterTaskJobIsNotMergedBeforeIt() {
+		CountDownLatch release = blockWriter();
+		Task before = task(1);
+		Task after = task(1);
+		queue.postUpdate(before, writer);
+		queue.postForTask(1, new Runnable() {
+			@Override
+			public void run() {
+				written.add("job");
+			}
+		});
+		queue.postUpdate(after, writer);
+		release.countDown();
+		drain();
+		assertEquals(3, written.size());
+		assertSame(before, written.get(0));
+		assertEquals("job", written.get(1));
+		assertSame(after, written.get(2));
+	}
+
+	@Test
+	public void writerSurvivesFailingJob() {
+		final IllegalStateException failure = new IllegalStateException("expected by test");
+		queue.post(new Runnable() {
+			@Override
+			public void run() {
+				throw failure;
+			}
+		});
+		queue.postUpdate(task(1), writer);
+		drain();
+		assertEquals(1L, queue.getFailedCount());
+		assertEquals(1, failures.size());
+		assertSame(failure, failures.get(0));
+		assertEquals(1, written.size());
+	}
+
+	@Test
+	public void postAndWaitThrowsFailureInCaller() {
+		final IllegalStateException failure = new IllegalStateException("expected by test");
+		try {
+			queue.postAndWait(new Runnable() {
+				@Override
+				public void run() {
+					throw failure;
+				}
+			});
+			fail("postAndWait returned normally");
+		} catch (IllegalStateException exc) {
+			assertSame(failure, exc);
+		}
+		queue.postUpdate(task(1), writer);
+		drain();
+		assertEquals(1, written.size());
+	}
+
+	@Test
+	public void postFromWriterThreadRunsImmediately() {
+		final boolean[] ran = new boolean[1];
+		queue.postAndWait(new Runnable() {
+			@Override
+			public void run() {
+				queue.post(new Runnable() {
+					@Override
+					public void run() {
+						ran[0] = true;
+					}
+				});
+				written.add(Boolean.valueOf(ran[0]));
+			}
+		});
+		assertTrue(ran[0]);
+		assertEquals(Boolean.TRUE, written.get(0));
+	}
+}
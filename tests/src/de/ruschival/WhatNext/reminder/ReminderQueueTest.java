@@ -0,0 +1,118 @@
+/******************************************************************************
+ * \filename ReminderQueueTest.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Plain JVM tests of the reminder schedule
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.reminder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.ruschival.WhatNext.Reminder;
+
+/**
+ * @author ruschi
+ *
+ *         Order of ReminderQueue, the time is passed to pollDue() thus no clock is needed. The
+ *         alarm loop of ReminderService is replayed with a fake clock.
+ */
+public class ReminderQueueTest {
+
+	private static Reminder reminder(long id) {
+		return new Reminder(id, 1L, 0, 0);
+	}
+
+	@Test
+	public void emptyQueue() {
+		ReminderQueue queue = new ReminderQueue();
+		assertEquals(0L, queue.peekTime());
+		assertTrue(queue.pollDue(Long.MAX_VALUE).isEmpty());
+		assertFalse(queue.cancel(1L));
+	}
+
+	@Test
+	public void pollsDueRemindersEarliestFirst() {
+		ReminderQueue queue = new ReminderQueue();
+		queue.schedule(reminder(1), 300);
+		queue.schedule(reminder(2), 100);
+		queue.schedule(reminder(3), 200);
+		queue.schedule(reminder(4), 400);
+		assertEquals(100L, queue.peekTime());
+
+		ArrayList<Reminder> due = queue.pollDue(300);
+		assertEquals(3, due.size());
+		assertEquals(Long.valueOf(2), due.get(0).getId());
+		assertEquals(Long.valueOf(3), due.get(1).getId());
+		assertEquals(Long.valueOf(1), due.get(2).getId());
+		assertEquals(1, queue.size());
+		assertEquals(400L, queue.peekTime());
+		assertTrue(queue.pollDue(399).isEmpty());
+	}
+
+	@Test
+	public void scheduleMovesQueuedReminder() {
+		ReminderQueue queue = new ReminderQueue();
+		queue.schedule(reminder(1), 100);
+		queue.schedule(reminder(2), 200);
+		queue.schedule(reminder(1), 300);
+		assertEquals(2, queue.size());
+		assertEquals(200L, queue.peekTime());
+		queue.schedule(reminder(1), 50);
+		assertEquals(50L, queue.peekTime());
+		assertEquals(Long.valueOf(1), queue.pollDue(50).get(0).getId());
+	}
+
+	@Test
+	public void cancelRemovesReminder() {
+		ReminderQueue queue = new ReminderQueue();
+		queue.schedule(reminder(1), 100);
+		queue.schedule(reminder(2), 200);
+		assertTrue(queue.cancel(1L));
+		assertFalse(queue.cancel(1L));
+		assertEquals(200L, queue.peekTime());
+		queue.clear();
+		assertEquals(0, queue.size());
+		assertEquals(0L, queue.peekTime());
+	}
+
+	@Test
+	public void matchesSortedReference() {
+		Random random = new Random(42);
+		ReminderQueue queue = new ReminderQueue();
+		HashMap<Long, Long> expected = new HashMap<Long, Long>();
+		for (int step = 0; step < 5000; step++) {
+			long id = random.nextInt(500);
+			if (random.nextInt(4) == 0) {
+				assertEquals(expected.remove(id) != null, queue.cancel(id));
+			} else {
+				long fireAt = random.nextInt(100000);
+				queue.schedule(reminder(id), fireAt);
+				expected.put(id, fireAt);
+			}
+		}
+		assertEquals(expected.size(), queue.size());
+		ArrayList<Long> times = new ArrayList<Long>(expected.values());
+		Collections.sort(times);
+		long now = 0;
+		int polled = 0;
+		while (queue.size() > 0) {
+			now += 1000;
+			for (Reminder due : queue.pollDue(now)) {
+				assertEquals(times.get(polled++), expected.get(due.getId()));
+			}
+		}
+		assertEquals(times.size(), polled);
+	}
+}
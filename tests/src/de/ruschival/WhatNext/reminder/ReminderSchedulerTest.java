@@ -0,0 +1,177 @@
+/******************************************************************************
+ * \filename ReminderSchedulerTest.java
+ * Copyright (c) 2011 - Thomas Ruschival (thomas@ruschival.de)
+ *
+ * \brief Plain JVM tests of the reminder alarm logic
+ *
+ * SPDX-License-Identifier:      GPL-2.0+
+ *
+ ******************************************************************************/
+package de.ruschival.WhatNext.reminder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.ruschival.WhatNext.Reminder;
+
+/**
+ * @author ruschi
+ *
+ *         ReminderScheduler driven by a fake clock like ReminderService: each alarm checks for
+ *         due reminders and is armed again at the returned time. The alarm may be delivered
+ *         late, e.g. while the device sleeps. The source replaces the database and counts its
+ *         reads.
+ */
+public class ReminderSchedulerTest {
+	private static final long LOOK_BACK = 55 * 1000;
+
+	/**
+	 * Reminders of the fake database by id
+	 */
+	private static class FakeSource implements ReminderScheduler.Source {
+		final HashMap<Long, Reminder> reminders = new HashMap<Long, Reminder>();
+
+		int loads = 0;
+
+		void add(long id, long fireAt) {
+			Reminder rem = new Reminder(id, 1L, 0, 0);
+			rem.fireAt = fireAt;
+			reminders.put(id, rem);
+		}
+
+		@Override
+		public ArrayList<Reminder> getPendingReminders(long after, long until) {
+			loads++;
+			ArrayList<Reminder> pending = new ArrayList<Reminder>();
+			for (Reminder rem : reminders.values()) {
+				if (rem.fireAt > after && rem.fireAt <= until) {
+					pending.add(rem);
+				}
+			}
+			return pending;
+		}
+
+		@Override
+		public long getNextReminderTime(long after) {
+			long next = 0;
+			for (Reminder rem : reminders.values()) {
+				if (rem.fireAt > after && (next == 0 || rem.fireAt < next)) {
+					next = rem.fireAt;
+				}
+			}
+			return next;
+		}
+	}
+
+	/**
+	 * Run the alarm loop until no reminder is pending
+	 *
+	 * @return time of notification by reminder id
+	 */
+	private static HashMap<Long, Long> runAlarms(ReminderScheduler scheduler, FakeSource source,
+			Random random, long start) {
+		HashMap<Long, Long> notified = new HashMap<Long, Long>();
+		long clock = start;
+		long lastCheck = clock - LOOK_BACK;
+		ArrayList<Reminder> due = new ArrayList<Reminder>();
+		long alarm = scheduler.check(clock, lastCheck, LOOK_BACK, due);
+		assertTrue(due.isEmpty());
+		lastCheck = clock;
+		while (alarm != 0) {
+			assertTrue(alarm > clock);
+			clock = alarm + (random.nextInt(4) == 0 ? random.nextInt(5000) : 0);
+			due.clear();
+			alarm = scheduler.check(clock, lastCheck, LOOK_BACK, due);
+			for (Reminder rem : due) {
+				long fireAt = source.reminders.get(rem.getId()).fireAt;
+				assertTrue(fireAt <= clock);
+				/* the previous run would have notified it */
+				assertTrue(fireAt > lastCheck);
+				assertNull(notified.put(rem.getId(), clock));
+			}
+			lastCheck = clock;
+		}
+		return notified;
+	}
+
+	@Test
+	public void notifiesEachReminderOnceAndNeverEarly() {
+		Random random = new Random(7);
+		FakeSource source = new FakeSource();
+		/* spread over 10 horizons, most reminders are loaded by a later check */
+		for (long id = 0; id < 1000; id++) {
+			source.add(id, 1000 + random.nextInt((int) (10 * ReminderScheduler.HORIZON)));
+		}
+		ReminderScheduler scheduler = new ReminderScheduler(source);
+		HashMap<Long, Long> notified = runAlarms(scheduler, source, random, 0);
+		assertEquals(source.reminders.size(), notified.size());
+		/* the database is read once per horizon, not on every alarm */
+		assertTrue(source.loads <= 20);
+	}
+
+	@Test
+	public void dataChangeReloadsQueue() {
+		FakeSource source = new FakeSource();
+		source.add(1, 10000);
+		ReminderScheduler scheduler = new ReminderScheduler(source);
+		ArrayList<Reminder> due = new ArrayList<Reminder>();
+		assertEquals(10000L, scheduler.check(0, -LOOK_BACK, LOOK_BACK, due));
+
+		/* without a data change the queue is not read again */
+		source.add(2, 5000);
+		assertEquals(10000L, scheduler.check(1000, 0, LOOK_BACK, due));
+		assertEquals(1, source.loads);
+
+		scheduler.dataChanged();
+		assertEquals(5000L, scheduler.check(2000, 1000, LOOK_BACK, due));
+		assertEquals(2, source.loads);
+		source.reminders.remove(2L);
+		scheduler.dataChanged();
+		assertEquals(10000L, scheduler.check(3000, 2000, LOOK_BACK, due));
+		assertTrue(due.isEmpty());
+	}
+
+	@Test
+	public void remindersMissedWhileOffAreNotifiedOnce() {
+		FakeSource source = new FakeSource();
+		source.add(1, 1000);
+		source.add(2, 2000);
+		source.add(3, 100000);
+		ReminderScheduler scheduler = new ReminderScheduler(source);
+		ArrayList<Reminder> due = new ArrayList<Reminder>();
+		/* last check before the device was switched off, first run after boot */
+		assertEquals(100000L, scheduler.check(50000, 500, LOOK_BACK, due));
+		assertEquals(2, due.size());
+		assertEquals(Long.valueOf(1), due.get(0).getId());
+		assertEquals(Long.valueOf(2), due.get(1).getId());
+		due.clear();
+		scheduler.dataChanged();
+		assertEquals(100000L, scheduler.check(60000, 50000, LOOK_BACK, due));
+		assertTrue(due.isEmpty());
+	}
+
+	@Test
+	public void clockSetBackChecksLookBackWindow() {
+		FakeSource source = new FakeSource();
+		source.add(1, 90000);
+		source.add(2, 200000);
+		ReminderScheduler scheduler = new ReminderScheduler(source);
+		ArrayList<Reminder> due = new ArrayList<Reminder>();
+		/* last check lies in the future */
+		long next = scheduler.check(100000, 500000, LOOK_BACK, due);
+		assertEquals(1, due.size());
+		assertEquals(Long.valueOf(1), due.get(0).getId());
+		assertEquals(200000L, next);
+		Map<Long, Long> notified = runAlarms(scheduler, source, new Random(1), 100000);
+		assertEquals(1, notified.size());
+		assertTrue(notified.containsKey(2L));
+	}
+}